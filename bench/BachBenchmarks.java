@@ -0,0 +1,163 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of Bach's hot paths, run by the {@code benchmark} basic tool.
+ *
+ * <p>The benchmark mode, time unit, and iteration counts are passed as JMH command-line options
+ * by the basic tool, as JMH ignores such annotations of an enclosing class.
+ *
+ * @see Subject
+ */
+public class BachBenchmarks {
+
+  static final Subject BACH = Subject.load();
+
+  @State(Scope.Benchmark)
+  public static class Finders {
+    @Param({"banner", "javac", "jfr", "unknown"})
+    String name;
+
+    @Benchmark
+    public Optional<?> find() {
+      return BACH.find(name);
+    }
+
+    @Benchmark
+    public Optional<?> findUncached() {
+      return BACH.findUncached(name);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class CompositeFinder {
+    @Benchmark
+    public List<?> findAll() {
+      return BACH.findAll();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Checksum {
+    @Param({"1024", "1048576", "33554432"})
+    int size;
+
+    @Param({"MD5", "SHA-1", "SHA-256"})
+    String algorithm;
+
+    Path file;
+
+    @Setup
+    public void setup() throws IOException {
+      var bytes = new byte[size];
+      new Random(size).nextBytes(bytes);
+      file = Files.write(Files.createTempFile("bach-checksum-", ".bin"), bytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public String computeChecksum() {
+      return BACH.computeChecksum(file, algorithm);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Writer {
+    @Param({"1000", "100000"})
+    int lines;
+
+    @Param({"0", "65536"})
+    int limit;
+
+    String line = "x".repeat(79) + '\n';
+
+    @Benchmark
+    public String write(Blackhole blackhole) {
+      return BACH.forward(blackhole::consume, limit, line, lines);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class FindFiles {
+    @Param({"10", "100"})
+    int directories;
+
+    Path root;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      root = Files.createTempDirectory("bach-find-files-");
+      for (int i = 0; i < directories; i++) {
+        var directory = Files.createDirectories(root.resolve("module" + i / 10).resolve("p" + i));
+        for (int j = 0; j < 10; j++) {
+          Files.writeString(directory.resolve("C" + j + ".java"), "class C" + j + " {}");
+          Files.writeString(directory.resolve("R" + j + ".txt"), "resource " + j);
+        }
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      try (var stream = Files.walk(root)) {
+        stream.sorted(Comparator.reverseOrder()).forEach(FindFiles::delete);
+      }
+    }
+
+    private static void delete(Path path) {
+      try {
+        Files.delete(path);
+      } catch (IOException exception) {
+        throw new UncheckedIOException(exception);
+      }
+    }
+
+    @Benchmark
+    public List<String> withFindFiles() {
+      return BACH.withFindFiles(root, "**.java");
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Options {
+    String[] args =
+        Stream.of(
+                "--verbose",
+                "--logbook-threshold=INFO",
+                "--chroot",
+                ".",
+                "--destination=.bach/out",
+                "--program-mode=process",
+                "javac",
+                "--release=17",
+                "-d",
+                ".bach/out/classes",
+                "src/Bach.java")
+            .toArray(String[]::new);
+
+    @Benchmark
+    public Object of() {
+      return BACH.parseOptions(args);
+    }
+  }
+}
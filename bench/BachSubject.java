@@ -0,0 +1,52 @@
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/** Implements the benchmarked operations by calling into Bach directly. */
+public class BachSubject implements bench.Subject {
+
+  private final Bach.ToolFinder cached = Bach.of(Bach.Printer.ofSilent()).tools().finder();
+
+  private final Bach.ToolFinder composite = Bach.composeToolFinder(Bach.Options.of());
+
+  @Override
+  public Optional<?> find(String name) {
+    return cached.find(name);
+  }
+
+  @Override
+  public Optional<?> findUncached(String name) {
+    return composite.find(name);
+  }
+
+  @Override
+  public List<?> findAll() {
+    return composite.findAll();
+  }
+
+  @Override
+  public String computeChecksum(Path file, String algorithm) {
+    return Bach.PathSupport.computeChecksum(file, algorithm);
+  }
+
+  @Override
+  public String forward(Consumer<String> consumer, int limit, String line, int count) {
+    var writer = new Bach.LineForwardingWriter(consumer, limit);
+    var printer = new PrintWriter(writer);
+    for (int i = 0; i < count; i++) printer.write(line);
+    printer.close();
+    return writer.toString();
+  }
+
+  @Override
+  public List<String> withFindFiles(Path start, String glob) {
+    return Bach.ToolCall.of("javac").withFindFiles(start, glob).arguments();
+  }
+
+  @Override
+  public Object parseOptions(String... args) {
+    return Bach.Options.of(args);
+  }
+}
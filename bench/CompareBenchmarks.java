@@ -0,0 +1,102 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares JMH results with a baseline and fails if a benchmark regressed.
+ *
+ * <p>Usage: {@code java bench/CompareBenchmarks.java RESULTS BASELINE [THRESHOLD-PERCENT]}
+ *
+ * <p>Both files are written by JMH's {@code -rf csv} result format. A benchmark regressed if its
+ * score is worse than the baseline score by more than the threshold, which defaults to 10 percent.
+ * Higher scores are better for the throughput mode, lower scores are better for all other modes.
+ * Benchmarks not found in the baseline are reported as new. A missing baseline fails the comparison,
+ * as scores depend on the machine: to record a baseline, copy a results file of a run on the same
+ * machine to the baseline location.
+ */
+class CompareBenchmarks {
+
+  record Result(String name, String mode, double score, String unit) {
+    boolean isBetterHigher() {
+      return mode.equals("thrpt");
+    }
+
+    /** {@return the change of the other score relative to this score in percent} */
+    double changeTo(Result other) {
+      return (other.score - score) / score * 100;
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: CompareBenchmarks RESULTS BASELINE [THRESHOLD-PERCENT]");
+      System.exit(1);
+    }
+    var results = read(Path.of(args[0]));
+    var baseline = Path.of(args[1]);
+    var threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+    if (Files.notExists(baseline)) {
+      System.err.printf("No baseline found at %s, copy %s to record one%n", baseline, args[0]);
+      System.exit(3);
+    }
+    var baselines = read(baseline);
+    var regressions = 0;
+    System.out.printf("%-72s %14s %14s %9s%n", "Benchmark", "Baseline", "Score", "Change");
+    for (var result : results.values()) {
+      var base = baselines.get(result.name());
+      if (base == null) {
+        System.out.printf("%-72s %14s %14.3f %9s%n", result.name(), "-", result.score(), "new");
+        continue;
+      }
+      var change = base.changeTo(result);
+      var regressed = (base.isBetterHigher() ? -change : change) > threshold;
+      if (regressed) regressions++;
+      System.out.printf(
+          "%-72s %14.3f %14.3f %+8.1f%%%s%n",
+          result.name(), base.score(), result.score(), change, regressed ? " REGRESSED" : "");
+    }
+    if (regressions == 0) return;
+    System.err.printf("%d benchmark(s) regressed by more than %.1f%%%n", regressions, threshold);
+    System.exit(2);
+  }
+
+  static Map<String, Result> read(Path file) throws Exception {
+    var lines = Files.readAllLines(file);
+    var header = split(lines.get(0));
+    var results = new LinkedHashMap<String, Result>();
+    for (var line : lines.subList(1, lines.size())) {
+      if (line.isBlank()) continue;
+      var values = split(line);
+      var name = new StringBuilder(values.get(0));
+      var separator = ':';
+      for (int i = 7; i < values.size(); i++) {
+        if (values.get(i).isEmpty()) continue;
+        var param = header.get(i).substring("Param: ".length());
+        name.append(separator).append(param).append('=').append(values.get(i));
+        separator = ',';
+      }
+      var score = Double.parseDouble(values.get(4).replace(',', '.'));
+      var result = new Result(name.toString(), values.get(1), score, values.get(6));
+      results.put(result.name(), result);
+    }
+    return results;
+  }
+
+  static List<String> split(String line) {
+    var values = new ArrayList<String>();
+    var value = new StringBuilder();
+    var quoted = false;
+    for (var c : line.toCharArray()) {
+      if (c == '"') quoted = !quoted;
+      else if (c == ',' && !quoted) {
+        values.add(value.toString());
+        value.setLength(0);
+      } else value.append(c);
+    }
+    values.add(value.toString());
+    return values;
+  }
+}
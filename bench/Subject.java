@@ -0,0 +1,43 @@
+package bench;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * The operations of Bach measured by the benchmarks.
+ *
+ * <p>JMH requires benchmarks to be declared in a named package, from where the classes of Bach
+ * in the unnamed package are not accessible. The {@code BachSubject} class in the unnamed package
+ * implements this interface and is loaded reflectively.
+ */
+public interface Subject {
+
+  static Subject load() {
+    try {
+      var type = Class.forName("BachSubject");
+      return (Subject) type.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException exception) {
+      throw new IllegalStateException("Loading Bach subject failed", exception);
+    }
+  }
+
+  /** {@return a tool found by the finder configured by {@code Bach.of()}} */
+  Optional<?> find(String name);
+
+  /** {@return a tool found by the finders configured by {@code Bach.of()}, without caching} */
+  Optional<?> findUncached(String name);
+
+  /** {@return all tools found by the finders configured by {@code Bach.of()}, without caching} */
+  List<?> findAll();
+
+  String computeChecksum(Path file, String algorithm);
+
+  /** {@return the retained output after writing the line the given number of times} */
+  String forward(Consumer<String> consumer, int limit, String line, int count);
+
+  List<String> withFindFiles(Path start, String glob);
+
+  Object parseOptions(String... args);
+}
@@ -1,103 +1,210 @@
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.System.Logger.Level;
-import java.math.BigInteger;
+import java.lang.module.ModuleDescriptor;
+import java.lang.module.ModuleFinder;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.StandardProtocolFamily;
 import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.UnixDomainSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.Properties;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.StringJoiner;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
 import java.util.spi.ToolProvider;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 import jdk.jfr.Category;
+import jdk.jfr.Configuration;
 import jdk.jfr.Event;
+import jdk.jfr.EventType;
 import jdk.jfr.Label;
 import jdk.jfr.Name;
 import jdk.jfr.Recording;
 import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import jdk.jfr.consumer.RecordingStream;
 
 public record Bach(
     Printer printer, Options options, Paths paths, Externals externals, Tools tools) {
 
   public static void main(String... args) {
-    var bach = Bach.of(args);
+    var options = Options.of(args);
+    if (options.flags().contains(Flag.CLIENT)) {
+      var socket = DaemonSupport.socket(options.__destination());
+      var code = DaemonSupport.connect(socket, System.out::println, System.err::println, args);
+      if (code.isPresent()) {
+        if (code.getAsInt() != 0) System.exit(code.getAsInt());
+        return;
+      }
+    }
+    var bach = Bach.of(options);
     var code = bach.main();
     if (code != 0) System.exit(code);
   }
 
   public static Bach of(String... args) {
-    return Bach.of(Printer.ofSystem(), args);
+    return Bach.of(Options.of(args));
+  }
+
+  static Bach of(Options options) {
+    var printer =
+        switch (options.__printer_mode()) {
+          case DIRECT -> Printer.ofSystem();
+          case ASYNC, GROUPED -> Printer.ofAsync();
+        };
+    return Bach.of(printer, options);
   }
 
   public static Bach of(Printer printer, String... args) {
-    var options = Options.of(args);
-    var properties = PathSupport.properties(options.__chroot.resolve("bach.properties"));
-    var programs = new TreeMap<Path, URI>();
-    for (var key : properties.stringPropertyNames()) {
-      if (key.startsWith(".bach/external-tool-program/")) {
-        var to = Path.of(key).normalize();
-        var from = URI.create(properties.getProperty(key));
-        programs.put(to, from);
-      }
-    }
+    return Bach.of(printer, Options.of(args));
+  }
+
+  static Bach of(Printer printer, Options options) {
+    var basics = options.__chroot.resolve(".bach/basic-tools");
+    var programs = options.__chroot.resolve(".bach/external-tool-program");
     return new Bach(
         printer,
         options,
         new Paths(options.__chroot, options.__destination),
-        new Externals(
-            properties.getProperty("bach.externals.default-checksum-algorithm", "SHA-256"),
-            programs),
-        new Tools(
-            ToolFinder.compose(
-                ToolFinder.of(
-                    Tool.of("help", Tool::help),
-                    Tool.of("/?", Tool::help),
-                    Tool.of("/save", Tool::save)),
-                ToolFinder.ofBasicTools(options.__chroot.resolve(".bach/basic-tools")),
-                ToolFinder.ofPrograms(
-                    options.__chroot.resolve(".bach/external-tool-program"),
-                    Path.of(System.getProperty("java.home"), "bin", "java"),
-                    "java.args"),
-                ToolFinder.of(
-                    Tool.of("banner", Tool::banner),
-                    Tool.of("build", Tool::build),
-                    Tool.of("checksum", Tool::checksum),
-                    Tool.of("compile", Tool::compile),
-                    Tool.of("download", Tool::download),
-                    Tool.of("info", Tool::info),
-                    Tool.of("test", Tool::test)),
-                ToolFinder.ofSystem(),
-                ToolFinder.of(
-                    Tool.ofJavaHomeBinary("jarsigner"),
-                    Tool.ofJavaHomeBinary("jdeprscan"),
-                    Tool.ofJavaHomeBinary("jfr")))));
+        new Externals(options.__chroot.resolve("bach.properties")),
+        new Tools(ToolFinder.cached(composeToolFinder(options), basics, programs)));
+  }
+
+  /** {@return the uncached composition of all tool finders configured by the given options} */
+  static ToolFinder composeToolFinder(Options options) {
+    var basics = options.__chroot.resolve(".bach/basic-tools");
+    var programs = options.__chroot.resolve(".bach/external-tool-program");
+    return ToolFinder.compose(
+        ToolFinder.of(
+            Tool.of("help", Tool::help),
+            Tool.of("/?", Tool::help),
+            Tool.of("/save", Tool::save)),
+        ToolFinder.ofBasicTools(basics),
+        ToolFinder.ofPrograms(
+            programs,
+            Path.of(System.getProperty("java.home"), "bin", "java"),
+            "java.args",
+            options.__program_mode()),
+        ToolFinder.of(
+            Tool.of("banner", Tool::banner),
+            Tool.of("build", Tool::build),
+            Tool.of("checksum", Tool::checksum),
+            Tool.of("compile", Tool::compile),
+            Tool.of("daemon", Tool::daemon),
+            Tool.of("download", Tool::download),
+            Tool.of("info", Tool::info),
+            Tool.of("profile", Tool::profile),
+            Tool.of("test", Tool::test),
+            Tool.of("watch", Tool::watch)),
+        ToolFinder.ofSystem(),
+        ToolFinder.of(
+            Tool.ofJavaHomeBinary("jarsigner"),
+            Tool.ofJavaHomeBinary("java"),
+            Tool.ofJavaHomeBinary("jdeprscan"),
+            Tool.ofJavaHomeBinary("jfr")));
   }
 
   public boolean is(Flag flag) {
@@ -129,7 +236,7 @@ public record Bach(
             ToolCall.of("javac").with("--version"),
             ToolCall.of("javadoc").with("--version"))
         .parallel()
-        .forEach(this::run);
+        .forEach(ThreadSupport.inheritConsumer(this::run));
 
     Stream.of(
             ToolCall.of("jdeps").with("--version"),
@@ -155,14 +262,35 @@ public record Bach(
   }
 
   public void checksum(Path path, String algorithm) {
-    var checksum = PathSupport.computeChecksum(path, algorithm);
+    var checksum = computeChecksum(path, algorithm);
     printer.print("%s %s".formatted(checksum, path));
   }
 
+  public void checksum(List<Path> files, String algorithm) {
+    var stream = files.stream().parallel().map(file -> computeChecksum(file, algorithm));
+    var checksums = stream.toList(); // in encounter order
+    for (int i = 0; i < files.size(); i++) {
+      printer.print("%s %s".formatted(checksums.get(i), files.get(i)));
+    }
+  }
+
   public void checksum(Path path, String algorithm, String expected) {
-    var computed = PathSupport.computeChecksum(path, algorithm);
+    var computed = computeChecksum(path, algorithm);
     if (computed.equalsIgnoreCase(expected)) return;
-    throw new AssertionError(
+    throw checksumMismatch(path, algorithm, computed, expected);
+  }
+
+  /**
+   * {@return the checksum of the given file, read from the persistent checksum cache if possible}
+   */
+  String computeChecksum(Path path, String algorithm) {
+    var cache = ChecksumCache.of(paths.out().resolve("checksums.txt"));
+    return cache.computeChecksum(path, algorithm);
+  }
+
+  static AssertionError checksumMismatch(
+      Path path, String algorithm, String computed, String expected) {
+    return new AssertionError(
         """
         Checksum mismatch detected!
                path: %s
@@ -174,35 +302,155 @@ public record Bach(
   }
 
   public void compile() {
-    log(Level.WARNING, "TODO compile()");
+    compile(List.of());
+  }
+
+  public void compile(List<String> options) {
+    var modules =
+        ModuleSupport.findSourceModules(paths.root(), paths.out()).stream()
+            .filter(module -> !module.isTestModule(paths.root()))
+            .toList();
+    if (modules.isEmpty()) {
+      log(Level.WARNING, "No module declaration found in " + paths.root().toUri());
+      return;
+    }
+    var externals = paths.externalModules();
+    var modulePath = Files.isDirectory(externals) ? List.of(externals) : List.<Path>of();
+    compile("main", modules, modulePath, options);
+  }
+
+  /**
+   * Compiles the given modules one topological layer at a time.
+   *
+   * <p>Modules of the same layer don't require each other and are compiled concurrently by
+   * individual {@code javac} calls. Their output directories are put on the module path of all
+   * subsequent layers.
+   *
+   * <p>A module is only recompiled if its sources, the compilation options, or the public API of
+   * a required module changed since the last compilation. Required modules are modules of the
+   * given list and exploded modules on the module path, like the modules compiled into an earlier
+   * space. Those fingerprints are stored in a {@code fingerprints.properties} file next to the
+   * space's classes directory.
+   *
+   * @param space the name of the module space, used as a subdirectory of the output directory
+   * @param modules the modules to compile
+   * @param modulePath the initial module path, usually containing external modules
+   * @param options additional options passed to each {@code javac} call
+   * @return the output directories of all compiled modules
+   */
+  List<Path> compile(
+      String space,
+      List<ModuleSupport.SourceModule> modules,
+      List<Path> modulePath,
+      List<String> options) {
+    var layers = ModuleSupport.layers(modules);
+    var count = modules.size();
+    log(Level.DEBUG, "Compile %d %s module(s) in %d layer(s)", count, space, layers.size());
+    var classes = paths.out().resolve(space).resolve("classes");
+    var store = paths.out().resolve(space).resolve("fingerprints.properties");
+    var fingerprints = PathSupport.properties(store);
+    var settings =
+        StringSupport.checksum(
+            Stream.of(
+                    Stream.of(Runtime.version().toString()),
+                    options.stream(),
+                    modulePath.stream()
+                        .flatMap(path -> PathSupport.list(path, PathSupport::isJarFile).stream())
+                        .map(jar -> jar + " " + PathSupport.computeChecksum(jar, "SHA-256")))
+                .flatMap(Function.identity()));
+    var apis = new ConcurrentHashMap<String, String>();
+    var graph = new TreeMap<String, Set<String>>();
+    for (var exploded : ModuleSupport.findExplodedModules(modulePath)) {
+      var descriptor = ModuleFinder.of(exploded).findAll().iterator().next().descriptor();
+      var requires = descriptor.requires().stream().map(ModuleDescriptor.Requires::name);
+      graph.put(descriptor.name(), requires.collect(Collectors.toUnmodifiableSet()));
+      apis.put(descriptor.name(), ModuleSupport.computeApiChecksum(exploded));
+    }
+    modules.forEach(module -> graph.put(module.name(), module.requires()));
+    var compiled = new ArrayList<Path>();
+    try {
+      var parent = ThreadSupport.currentRun();
+      for (var layer : layers) {
+        var upstream = Stream.concat(modulePath.stream(), compiled.stream()).toList();
+        layer.stream()
+            .parallel()
+            .forEach(
+                module -> {
+                  var name = module.name();
+                  var output = classes.resolve(name);
+                  var files = PathSupport.find(module.root(), "**.java");
+                  var sources =
+                      StringSupport.checksum(
+                          files.stream()
+                              .map(file -> computeChecksum(file, "SHA-256") + file));
+                  var requires =
+                      StringSupport.checksum(
+                          ModuleSupport.closure(module, graph).stream()
+                              .map(required -> required + " " + apis.get(required)));
+                  if (Files.isDirectory(output)
+                      && sources.equals(fingerprints.getProperty(name + ".sources"))
+                      && settings.equals(fingerprints.getProperty(name + ".options"))
+                      && requires.equals(fingerprints.getProperty(name + ".upstream"))
+                      && fingerprints.containsKey(name + ".api")) {
+                    log(Level.DEBUG, () -> "Skip compiling unchanged module " + name);
+                    apis.put(name, fingerprints.getProperty(name + ".api"));
+                    return;
+                  }
+                  PathSupport.delete(output);
+                  var call = ToolCall.of("javac").with(options.stream()).with("-d", output);
+                  if (!upstream.isEmpty()) {
+                    call = call.with("--module-path", PathSupport.join(upstream));
+                  }
+                  var javac = call.with(files.stream());
+                  ThreadSupport.runAs(parent, () -> run(javac));
+                  var api = ModuleSupport.computeApiChecksum(output);
+                  apis.put(name, api);
+                  fingerprints.setProperty(name + ".sources", sources);
+                  fingerprints.setProperty(name + ".options", settings);
+                  fingerprints.setProperty(name + ".upstream", requires);
+                  fingerprints.setProperty(name + ".api", api);
+                });
+        layer.forEach(module -> compiled.add(classes.resolve(module.name())));
+      }
+    } finally {
+      PathSupport.store(fingerprints, store);
+    }
+    return List.copyOf(compiled);
   }
 
   public void download(Map<Path, URI> map) {
-    map.entrySet().stream()
-        .parallel()
-        .forEach(entry -> run("download", entry.getKey(), entry.getValue()));
+    if (map.isEmpty()) return;
+    var threads = Math.max(1, Math.min(map.size(), externals.downloadConcurrency()));
+    var executor = Executors.newFixedThreadPool(threads);
+    try {
+      var futures =
+          map.entrySet().stream()
+              .map(entry -> (Runnable) () -> run("download", entry.getKey(), entry.getValue()))
+              .map(ThreadSupport::inherit)
+              .map(runnable -> CompletableFuture.runAsync(runnable, executor))
+              .toList();
+      ThreadSupport.joinAll(futures);
+    } finally {
+      executor.shutdownNow();
+    }
   }
 
   public void download(Path to, URI from, CopyOption... options) {
-    if (Set.of(options).contains(StandardCopyOption.REPLACE_EXISTING) || Files.notExists(to)) {
-      log("Downloading %s".formatted(from));
-      try (var stream = from.toURL().openStream()) {
-        var parent = to.getParent();
-        if (parent != null) Files.createDirectories(parent);
-        var size = Files.copy(stream, to, options);
-        log("Downloaded %,12d %s".formatted(size, to.getFileName()));
-      } catch (Exception exception) {
-        throw new RuntimeException(exception);
+    var checksums = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    var fragment = from.getFragment();
+    if (fragment != null) {
+      for (var element : fragment.split("&")) {
+        var property = StringSupport.parseProperty(element);
+        checksums.put(property.key(), property.value());
       }
     }
-    var fragment = from.getFragment();
-    if (fragment == null) return;
-    for (var element : fragment.split("&")) {
-      var property = StringSupport.parseProperty(element);
-      var algorithm = property.key();
-      var expected = property.value();
-      run("checksum", to, algorithm, expected);
+    if (Set.of(options).contains(StandardCopyOption.REPLACE_EXISTING) || Files.notExists(to)) {
+      log(Level.DEBUG, "Downloading %s", from);
+      var size = DownloadSupport.download(from, to, checksums, options);
+      log(Level.DEBUG, "Downloaded %,12d %s", size, to.getFileName());
+      return;
     }
+    checksums.forEach((algorithm, expected) -> run("checksum", to, algorithm, expected));
   }
 
   public void log(String message) {
@@ -210,13 +458,37 @@ public record Bach(
   }
 
   public void log(Level level, String message) {
-    var event = new LogEvent();
-    event.level = level.name();
-    event.message = message;
-    event.commit();
+    log(level, () -> message);
+  }
+
+  /**
+   * Logs a message formatted with the given arguments, only if it will be recorded or printed.
+   *
+   * @see String#formatted(Object...)
+   */
+  public void log(Level level, String format, Object... arguments) {
+    log(level, () -> format.formatted(arguments));
+  }
 
+  /**
+   * Logs the supplied message.
+   *
+   * <p>The supplier is not called and no event is created if the logbook recording doesn't record
+   * log events and the level is below the threshold of messages printed to the console.
+   */
+  public void log(Level level, Supplier<String> supplier) {
     var severity = level.getSeverity();
-    if (severity < options.__logbook_threshold.getSeverity()) return;
+    var printing = severity >= options.__logbook_threshold.getSeverity();
+    var recording = !is(Flag.NO_LOGBOOK) && LogEventType.TYPE.isEnabled();
+    if (!printing && !recording) return;
+    var message = supplier.get();
+    if (recording) {
+      var event = new LogEvent();
+      event.level = level.name();
+      event.message = message;
+      event.commit();
+    }
+    if (!printing) return;
     if (severity <= Level.DEBUG.getSeverity()) {
       printer.print(message);
       return;
@@ -225,8 +497,7 @@ public record Bach(
       printer.error(message);
       return;
     }
-    var max = 1000;
-    printer.print(message.length() <= max ? message : message.substring(0, max - 5) + "[...]");
+    printer.print(StringSupport.shorten(message, 1000));
   }
 
   private int main() {
@@ -235,25 +506,24 @@ public record Bach(
       help();
       return 1;
     }
-    try (var recording = new Recording()) {
-      recording.start();
-      log("BEGIN");
-      try {
-        run(seed, Level.DEBUG);
-        return 0;
-      } catch (RuntimeException exception) {
-        log(Level.ERROR, exception.toString());
-        return -1;
-      } finally {
-        log("END.");
-        recording.stop();
-        var jfr = Files.createDirectories(paths.out()).resolve("bach-logbook.jfr");
-        recording.dump(jfr);
-      }
+    Logbook logbook;
+    try {
+      logbook = Logbook.start(options, Files.createDirectories(paths.out()), printer.err());
     } catch (Exception exception) {
       log(Level.ERROR, exception.toString());
       return -2;
     }
+    try {
+      log("BEGIN");
+      run(seed, Level.DEBUG);
+      return 0;
+    } catch (RuntimeException exception) {
+      log(Level.ERROR, exception.toString());
+      return -1;
+    } finally {
+      log("END.");
+      logbook.close();
+    }
   }
 
   public void run(String name, Object... arguments) {
@@ -269,53 +539,699 @@ public record Bach(
   }
 
   void run(ToolCall call, Level level) {
+    var name = call.name();
+    var checksums = is(Flag.CACHE) ? ChecksumCache.of(paths.out().resolve("checksums.txt")) : null;
+    var cache = checksums == null ? null : ToolCallCache.ofUserHome(checksums);
+    var key = cache == null ? Optional.<String>empty() : cache.key(call);
+    if (key.isPresent() && cache.restore(key.get())) {
+      log(level, call::toCommandLine);
+      log(Level.DEBUG, "Restored outputs of %s call from cache %s", name, key.get());
+      var event = is(Flag.NO_LOGBOOK) ? null : new RunEvent();
+      if (event != null && event.isEnabled()) {
+        event.id = ThreadSupport.RUNS.incrementAndGet();
+        event.parent = ThreadSupport.currentRun();
+        event.name = name;
+        event.args = String.join(" ", call.arguments());
+        event.out = "Restored from cache " + key.get();
+        event.commit();
+      }
+      return;
+    }
+
+    var tool = tools.finder().find(name).orElseThrow(() -> new ToolNotFoundException(name));
+    var begin = Instant.now();
+    run(tool, call, level);
+    key.ifPresent(hash -> cache.store(hash, call, begin));
+  }
+
+  /**
+   * Runs the given tool provider with the arguments of the given call.
+   *
+   * @param tool the tool provider to run, not necessarily found by this instance's tool finder
+   * @param call the call to log and whose arguments are passed to the tool provider
+   * @param level the level to log the call at
+   * @throws AssertionError if the tool provider returned a non-zero exit code
+   */
+  void run(ToolProvider tool, ToolCall call, Level level) {
     var name = call.name();
     var arguments = call.arguments();
 
-    var event = new RunEvent();
-    event.name = name;
-    event.args = String.join(" ", arguments);
+    log(level, call::toCommandLine);
 
-    log(level, arguments.isEmpty() ? name : name + ' ' + event.args);
+    var id = ThreadSupport.RUNS.incrementAndGet();
+    var event = is(Flag.NO_LOGBOOK) ? null : new RunEvent();
+    var recording = event != null && event.isEnabled();
+    if (recording) {
+      event.id = id;
+      event.parent = ThreadSupport.currentRun();
+      event.name = name;
+      event.args = String.join(" ", arguments);
+      event.begin();
+    }
 
-    var tool = tools.finder().find(name).orElseThrow(() -> new ToolNotFoundException(name));
-    var out = new ForwardingStringWriter(s -> printer().out().accept(s.indent(2).stripTrailing()));
-    var err = new ForwardingStringWriter(s -> printer().err().accept(s.indent(2).stripTrailing()));
+    var limit = recording ? options.__logbook_output_limit() * 1024 : 0;
+    UnaryOperator<String> indent = line -> ("  " + line).stripTrailing();
+    var grouped = options.__printer_mode() == PrinterMode.GROUPED;
+    var outs = grouped ? new StringJoiner("\n") : null;
+    var errs = grouped ? new StringJoiner("\n") : null;
+    Consumer<String> printOut = grouped ? outs::add : printer.out();
+    Consumer<String> printErr = grouped ? errs::add : printer.err();
+    var out = new LineForwardingWriter(line -> printOut.accept(indent.apply(line)), limit);
+    var err = new LineForwardingWriter(line -> printErr.accept(indent.apply(line)), limit);
     var args = arguments.toArray(String[]::new);
 
-    event.begin();
-    event.code =
-        tool instanceof Tool.Provider provider
-            ? provider.run(this, new PrintWriter(out, true), new PrintWriter(err, true), args)
-            : tool.run(new PrintWriter(out, true), new PrintWriter(err, true), args);
-    event.end();
-    event.out = out.toString().strip();
-    event.err = err.toString().strip();
-    event.commit();
+    int code;
+    var parent = ThreadSupport.swapRun(id);
+    try {
+      code =
+          tool instanceof Tool.Provider provider
+              ? provider.run(this, new PrintWriter(out, true), new PrintWriter(err, true), args)
+              : tool.run(new PrintWriter(out, true), new PrintWriter(err, true), args);
+    } finally {
+      ThreadSupport.swapRun(parent);
+      // print what the tool wrote, even if it threw, including trailing partial lines
+      out.close();
+      err.close();
+      if (grouped && outs.length() > 0) printer.out().accept(outs.toString());
+      if (grouped && errs.length() > 0) printer.err().accept(errs.toString());
+    }
+    if (recording) {
+      event.end();
+      event.code = code;
+      if (limit > 0) {
+        event.out = out.toString().strip();
+        event.err = err.toString().strip();
+      }
+      event.commit();
+    }
 
-    if (event.code == 0) return;
+    if (code == 0) return;
 
     throw new AssertionError(
         """
         %s returned non-zero exit code: %d
         """
-            .formatted(call.name(), event.code));
+            .formatted(call.name(), code));
+  }
+
+  /**
+   * Runs the given call, and runs it again each time files of the project change.
+   *
+   * <p>All directories below the root directory, including {@code .bach} with its basic tools
+   * but except the output directory, are watched for changes. Changes reported within a short
+   * quiet period are coalesced into a single iteration. During an iteration, steps of basic tools
+   * that are not {@linkplain Changes#affects(ToolCall) affected} by the changes are skipped,
+   * unless a file below {@code .bach} changed: then all steps are run. This method returns when
+   * the current thread is interrupted.
+   *
+   * @param call the call to run
+   */
+  public void watch(ToolCall call) {
+    var root = paths.root().toAbsolutePath().normalize();
+    var out = paths.out().toAbsolutePath().normalize();
+    var configuration = root.resolve(".bach");
+    try (var service = root.getFileSystem().newWatchService()) {
+      var keys = new HashMap<WatchKey, Path>();
+      watch(service, keys, root, out);
+      watch(call, null);
+      while (true) {
+        var changes = new TreeSet<Path>();
+        var key = service.take();
+        while (key != null) {
+          var directory = keys.get(key);
+          for (var event : key.pollEvents()) {
+            if (directory == null || !(event.context() instanceof Path name)) continue;
+            var path = directory.resolve(name);
+            if (path.startsWith(out)) continue;
+            changes.add(path);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+              watch(service, keys, path, out);
+            }
+          }
+          if (!key.reset()) keys.remove(key);
+          key = service.poll(250, TimeUnit.MILLISECONDS);
+        }
+        if (changes.isEmpty()) continue;
+        log(Level.INFO, "%d change(s) detected, first: %s", changes.size(), changes.first());
+        if (changes.stream().anyMatch(path -> path.startsWith(configuration))) {
+          log(Level.INFO, "Configuration changed, running all steps");
+          watch(call, null);
+          continue;
+        }
+        watch(call, new Changes(changes));
+      }
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  private void watch(ToolCall call, Changes changes) {
+    var bach = new Bach(printer, options.with(changes), paths, externals, tools);
+    try {
+      bach.run(call);
+      log(Level.INFO, "Watching for changes...");
+    } catch (RuntimeException | AssertionError throwable) {
+      log(Level.ERROR, throwable.toString());
+    }
+  }
+
+  private static void watch(WatchService service, Map<WatchKey, Path> keys, Path start, Path out)
+      throws IOException {
+    Files.walkFileTree(
+        start,
+        new SimpleFileVisitor<>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+              throws IOException {
+            if (directory.startsWith(out)) return FileVisitResult.SKIP_SUBTREE;
+            var key =
+                directory.register(
+                    service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(key, directory);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  /**
+   * Prints a profile of the tool runs recorded in a logbook.
+   *
+   * <p>The nested calls of tool runs are rebuilt from the run events of the given JFR file. The
+   * profile lists the tools ranked by their self time, which excludes time covered by nested runs,
+   * the critical path of runs that determined the end of the session, and the parallelism of all
+   * innermost runs over time.
+   *
+   * @param file the logbook to read, usually {@code bach-logbook.jfr} in the output directory
+   * @param top the maximum number of tools to list
+   * @param trace the file to write a Chrome trace-event JSON to, or {@code null}
+   */
+  public void profile(Path file, int top, Path trace) {
+    var runs = ProfileSupport.read(file);
+    if (runs.isEmpty()) {
+      log(Level.WARNING, "No tool runs recorded in " + file.toUri());
+      return;
+    }
+    var roots = ProfileSupport.tree(runs);
+    var begin = runs.stream().mapToLong(ProfileSupport.Run::start).min().orElseThrow();
+    var end = runs.stream().mapToLong(ProfileSupport.Run::end).max().orElseThrow();
+    var leaves = runs.stream().filter(run -> run.children().isEmpty()).toList();
+    var busy = leaves.stream().mapToLong(ProfileSupport.Run::duration).sum();
+    printer.print(
+        "%d runs in %s, average parallelism %.2f, maximum parallelism %d"
+            .formatted(
+                runs.size(),
+                ProfileSupport.millis(end - begin),
+                busy / (double) Math.max(1, end - begin),
+                ProfileSupport.maximumParallelism(leaves)));
+
+    printer.print("%-20s %6s %12s %12s".formatted("Tool", "Runs", "Self", "Total"));
+    runs.stream()
+        .collect(Collectors.groupingBy(ProfileSupport.Run::name))
+        .entrySet()
+        .stream()
+        .map(entry -> ProfileSupport.Summary.of(entry.getKey(), entry.getValue()))
+        .sorted(Comparator.comparingLong(ProfileSupport.Summary::self).reversed())
+        .limit(top)
+        .forEach(summary -> printer.print(summary.toString()));
+
+    printer.print("Critical path");
+    for (var step : ProfileSupport.criticalPath(roots, 0)) {
+      var run = step.run();
+      printer.print(
+          "%12s %12s %s%s"
+              .formatted(
+                  ProfileSupport.millis(run.start() - begin),
+                  ProfileSupport.millis(run.duration()),
+                  "  ".repeat(step.depth()),
+                  StringSupport.shorten((run.name() + ' ' + run.args()).strip(), 80)));
+    }
+
+    printer.print("Parallelism over time");
+    var histogram = ProfileSupport.parallelism(leaves, begin, end, 10);
+    for (int i = 0; i < histogram.length; i++) {
+      var offset = (end - begin) * i / histogram.length;
+      var bar = "#".repeat((int) Math.round(histogram[i] * 10));
+      var line = "%12s %6.2f %s".formatted(ProfileSupport.millis(offset), histogram[i], bar);
+      printer.print(line.stripTrailing());
+    }
+
+    if (trace == null) return;
+    ProfileSupport.writeTrace(trace, runs, begin);
+    log(Level.INFO, "Trace written to " + trace.toUri());
   }
 
   public void test() {
-    log(Level.WARNING, "TODO test()");
+    test(List.of());
+  }
+
+  /**
+   * Compiles and runs all modules declared in {@code test} directories.
+   *
+   * <p>Test modules are compiled into the {@code test} space with the compiled modules of the
+   * {@code main} space, all external modules, and the JUnit Platform console launcher on their
+   * module path. Each test module is then run as a named module by its own launcher, loaded from
+   * the program directory {@code .bach/external-tool-program/junit} into an isolated module
+   * layer. All test modules are run concurrently and parallel execution of JUnit Jupiter tests is
+   * enabled by default.
+   *
+   * <p>As Bach has no compile-time dependency on the JUnit Platform, it drives each launcher via
+   * its {@code ToolProvider} implementation instead of the Launcher API. The launcher prints a
+   * summary of all tests of its module. For a report per container, register a {@code
+   * TestExecutionListener} as a service in the test module or in {@code test-resources}.
+   *
+   * @param arguments additional arguments passed to each launcher, overriding the defaults
+   */
+  public void test(List<String> arguments) {
+    var classPath = new ArrayList<Path>();
+    var compiled = compileTestModules(classPath);
+    var failed =
+        compiled.parallelStream()
+            .filter(ThreadSupport.inheritPredicate(classes -> !test(classes, classPath, arguments)))
+            .map(PathSupport::name)
+            .sorted()
+            .toList();
+    if (failed.isEmpty()) return;
+    throw new AssertionError("Tests failed in module(s): " + String.join(", ", failed));
+  }
+
+  /**
+   * Compiles all test modules and runs their test classes distributed over forked processes.
+   *
+   * <p>Test classes are found by the default class name pattern of the JUnit Platform console
+   * launcher. They are distributed over the given number of shards by their durations recorded in
+   * {@code test-durations.properties}, longest first, each to the shard with the least total
+   * duration so far. Every shard is run by a console launcher in a new Java process. The test
+   * results recorded by a listener in each shard are merged into a single summary and the recorded
+   * durations updated.
+   *
+   * @param shards the number of processes to run tests in
+   * @param arguments additional arguments passed to each launcher, overriding the defaults
+   */
+  public void test(int shards, List<String> arguments) {
+    var classPath = new ArrayList<Path>();
+    var compiled = compileTestModules(classPath);
+    if (compiled.isEmpty()) return;
+    var junit = classPath.get(0); // the console launcher, added first by compileTestModules
+    classPath.addAll(0, compiled);
+    classPath.add(TestSupport.compileListener(paths.out().resolve("test"), junit));
+    var classes = TestSupport.findTestClasses(compiled);
+    var durationsFile = paths.out().resolve("test-durations.properties");
+    var durations = PathSupport.properties(durationsFile);
+    var groups = TestSupport.balance(classes, durations, shards);
+    log(Level.DEBUG, "Run %d test class(es) in %d shard(s)", classes.size(), groups.size());
+    var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    var command = List.of(java, "--class-path", PathSupport.join(classPath));
+    var executor = Executors.newFixedThreadPool(Math.max(1, groups.size()));
+    var failed = new TreeSet<Integer>();
+    try {
+      var futures = new ArrayList<CompletableFuture<Void>>();
+      for (int shard = 0; shard < groups.size(); shard++) {
+        var index = shard;
+        var directory = paths.out().resolve("test").resolve("shard-" + index);
+        PathSupport.delete(directory);
+        var lines = new ArrayList<String>();
+        lines.add("--disable-banner");
+        lines.add("--details=none");
+        lines.add("--reports-dir=" + directory);
+        lines.add("--config=junit.jupiter.execution.parallel.enabled=true");
+        lines.add("--config=junit.jupiter.execution.parallel.mode.default=concurrent");
+        lines.add("--config=" + TestSupport.RESULTS + "=" + directory.resolve("results.csv"));
+        groups.get(index).forEach(name -> lines.add("--select-class=" + name));
+        lines.addAll(arguments);
+        var argsfile = paths.out().resolve("test").resolve("shard-" + index + ".args");
+        Files.createDirectories(argsfile.getParent());
+        Files.write(argsfile, lines);
+        var launcher = new ArrayList<>(command);
+        launcher.add("org.junit.platform.console.ConsoleLauncher");
+        var provider = new ToolFinder.ExecuteProgramToolProvider("junit", launcher);
+        var call = ToolCall.of("junit", "@" + argsfile);
+        Runnable runnable =
+            () -> {
+              try {
+                run(provider, call, Level.INFO);
+              } catch (AssertionError error) {
+                synchronized (failed) {
+                  failed.add(index);
+                }
+              }
+            };
+        futures.add(CompletableFuture.runAsync(ThreadSupport.inherit(runnable), executor));
+      }
+      ThreadSupport.joinAll(futures);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    } finally {
+      executor.shutdownNow();
+    }
+    var results = new TreeMap<String, TestSupport.Result>();
+    for (int shard = 0; shard < groups.size(); shard++) {
+      var file = paths.out().resolve("test").resolve("shard-" + shard).resolve("results.csv");
+      TestSupport.readResults(file)
+          .forEach((name, result) -> results.merge(name, result, TestSupport.Result::with));
+    }
+    results.forEach(
+        (name, result) -> durations.setProperty(name, Long.toString(result.millis())));
+    PathSupport.store(durations, durationsFile);
+    var format = "%-25s %9s %9s %9s %9s %9s";
+    printer.print(format.formatted("Name", "Found", "OK", "Aborted", "Failed", "Skipped"));
+    var total = new TestSupport.Result(0, 0, 0, 0, 0);
+    for (var entry : results.entrySet()) {
+      var result = entry.getValue();
+      total = total.with(result);
+      printer.print(result.toString(format, entry.getKey()));
+    }
+    printer.print(total.toString(format, "Shards (%d)".formatted(groups.size())));
+    if (failed.isEmpty() && total.failed() == 0) return;
+    throw new AssertionError("Tests failed in shard(s): " + failed);
+  }
+
+  /**
+   * Compiles the modules of the main and the test space.
+   *
+   * @param classPath the list to add the class path elements required to run the tests to
+   * @return the output directories of all compiled test modules
+   */
+  private List<Path> compileTestModules(List<Path> classPath) {
+    var modules = ModuleSupport.findSourceModules(paths.root(), paths.out());
+    var tests = modules.stream().filter(module -> module.isTestModule(paths.root())).toList();
+    if (tests.isEmpty()) {
+      log(Level.WARNING, "No test module declaration found in " + paths.root().toUri());
+      return List.of();
+    }
+    var junit = paths.root().resolve(".bach/external-tool-program/junit");
+    var launchers = PathSupport.list(junit, PathSupport::isJarFile);
+    if (launchers.size() != 1) {
+      throw new IllegalStateException("Expected a single jar file in " + junit.toUri());
+    }
+    var externals = paths.externalModules();
+    var modulePath = new ArrayList<Path>();
+    if (Files.isDirectory(externals)) modulePath.add(externals);
+    var launcher = launcher(launchers.get(0), tests, modulePath);
+    var mains = modules.stream().filter(module -> !module.isTestModule(paths.root())).toList();
+    classPath.add(launcher);
+    if (!mains.isEmpty()) {
+      var compiled = compile("main", mains, List.copyOf(modulePath), List.of());
+      modulePath.add(paths.out().resolve("main").resolve("classes"));
+      classPath.addAll(compiled);
+    }
+    classPath.addAll(PathSupport.list(externals, PathSupport::isJarFile));
+    var resources = paths.root().resolve("test-resources");
+    if (Files.isDirectory(resources)) classPath.add(resources);
+    modulePath.add(launcher.getParent());
+    return compile("test", tests, List.copyOf(modulePath), List.of());
+  }
+
+  /**
+   * {@return the console launcher jar to put on the module path of the test space}
+   *
+   * <p>The standalone launcher jar is an automatic module named after its file. If the test
+   * modules require a JUnit module, like {@code org.junit.jupiter.api}, that is not found on the
+   * given module path, a copy of the jar named after that module is returned instead.
+   */
+  private Path launcher(Path jar, List<ModuleSupport.SourceModule> tests, List<Path> modulePath) {
+    var finder = ModuleFinder.of(modulePath.toArray(Path[]::new));
+    var missing =
+        tests.stream()
+            .flatMap(module -> module.requires().stream())
+            .filter(name -> name.startsWith("org.junit."))
+            .filter(name -> finder.find(name).isEmpty())
+            .collect(Collectors.toCollection(TreeSet::new));
+    if (missing.isEmpty()) return jar;
+    if (missing.size() > 1) {
+      var message = "Expected a single JUnit module to be required, but got: " + missing;
+      throw new IllegalStateException(message + " - put them into " + paths.externalModules());
+    }
+    var alias = paths.out().resolve("test").resolve("junit").resolve(missing.first() + ".jar");
+    try {
+      PathSupport.delete(alias.getParent());
+      Files.createDirectories(alias.getParent());
+      return Files.copy(jar, alias, StandardCopyOption.COPY_ATTRIBUTES);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  /**
+   * Runs the tests of a compiled test module in a module layer of its own.
+   *
+   * <p>The test module and all modular elements of the given class path, including the console
+   * launcher as an automatic module, are defined to a single class loader. Directories that are no
+   * exploded modules, like {@code test-resources}, are loaded by its parent class loader: they may
+   * contain resources, but no classes depending on modules of the layer.
+   */
+  private boolean test(Path classes, List<Path> classPath, List<String> arguments) {
+    var thread = Thread.currentThread();
+    var context = thread.getContextClassLoader();
+    var module = ModuleFinder.of(classes).findAll().iterator().next().descriptor().name();
+    try {
+      var modulePath = new ArrayList<Path>();
+      var urls = new ArrayList<URL>();
+      modulePath.add(classes);
+      for (var path : classPath) {
+        var plain = Files.isDirectory(path) && Files.notExists(path.resolve("module-info.class"));
+        if (plain) urls.add(path.toUri().toURL());
+        else modulePath.add(path);
+      }
+      var finder = ModuleFinder.of(modulePath.toArray(Path[]::new));
+      var roots = new TreeSet<String>();
+      finder.findAll().forEach(reference -> roots.add(reference.descriptor().name()));
+      var boot = ModuleLayer.boot();
+      var configuration = boot.configuration().resolveAndBind(finder, ModuleFinder.of(), roots);
+      var name = "junit-" + module;
+      var platform = ClassLoader.getPlatformClassLoader();
+      try (var parent = new URLClassLoader(name, urls.toArray(URL[]::new), platform)) {
+        var layer = boot.defineModulesWithOneLoader(configuration, parent);
+        var loader = layer.findLoader(module);
+        var junit =
+            ToolFinder.of(loader)
+                .find("junit")
+                .orElseThrow(() -> new ToolNotFoundException("junit"));
+        var call =
+            ToolCall.of("junit")
+                .with("--scan-class-path=" + classes)
+                .with("--config=junit.jupiter.execution.parallel.enabled=true")
+                .with("--config=junit.jupiter.execution.parallel.mode.default=concurrent")
+                .with(arguments.stream());
+        thread.setContextClassLoader(loader);
+        run(junit, call, Level.INFO);
+        return true;
+      }
+    } catch (AssertionError error) {
+      log(Level.ERROR, "Tests of module %s failed: %s", module, error.getMessage().strip());
+      return false;
+    } catch (Exception exception) {
+      throw new RuntimeException(exception);
+    } finally {
+      thread.setContextClassLoader(context);
+    }
   }
 
   public record Printer(Consumer<String> out, Consumer<String> err, Deque<Line> lines) {
 
-    record Line(Level level, String text) {}
+    public record Line(Level level, String text) {}
+
+    /**
+     * Retains the most recently printed lines at or above a level threshold.
+     *
+     * <p>Adding a line to a full deque removes the oldest lines until the new line fits; lines
+     * below the threshold are ignored. All operations, including snapshots via {@link #toList()},
+     * hold the lock of the deque, so a snapshot never contains stale or partially replaced lines.
+     */
+    public static final class Lines extends LinkedBlockingDeque<Line> {
+      @java.io.Serial private static final long serialVersionUID = 4032164470212845341L;
+
+      public static final int DEFAULT_CAPACITY = 1024;
+
+      private final boolean enabled;
+      private final Level threshold;
+
+      public Lines(int capacity, Level threshold) {
+        super(Math.max(1, capacity));
+        if (capacity < 0) throw new IllegalArgumentException("Negative capacity: " + capacity);
+        this.enabled = capacity > 0;
+        this.threshold = threshold;
+      }
+
+      @Override
+      public boolean offerLast(Line line) {
+        if (!enabled || line.level().getSeverity() < threshold.getSeverity()) return true;
+        while (!super.offerLast(line)) pollFirst();
+        return true;
+      }
+
+      /** {@return a snapshot of the retained lines, oldest first} */
+      public List<Line> toList() {
+        return List.of(toArray(Line[]::new));
+      }
+
+      @Override
+      public Stream<Line> stream() {
+        return toList().stream();
+      }
+    }
 
     public static Printer ofSilent() {
-      return new Printer(__ -> {}, __ -> {}, new ConcurrentLinkedDeque<>());
+      return ofSilent(Lines.DEFAULT_CAPACITY, Level.ALL);
+    }
+
+    public static Printer ofSilent(int capacity, Level threshold) {
+      return new Printer(__ -> {}, __ -> {}, new Lines(capacity, threshold));
     }
 
     public static Printer ofSystem() {
-      return new Printer(System.out::println, System.err::println, new ConcurrentLinkedDeque<>());
+      return ofSystem(Lines.DEFAULT_CAPACITY, Level.ALL);
+    }
+
+    public static Printer ofSystem(int capacity, Level threshold) {
+      var lines = new Lines(capacity, threshold);
+      return new Printer(System.out::println, System.err::println, lines);
+    }
+
+    public static Printer ofAsync() {
+      return ofAsync(Lines.DEFAULT_CAPACITY, Level.ALL);
+    }
+
+    /**
+     * {@return a printer writing lines to the standard streams on a dedicated thread}
+     *
+     * <p>Printed lines are queued and written in batches by a daemon thread, which flushes all
+     * pending lines before this process exits. Lines are written in the order they were queued:
+     * pending standard output is flushed before an error line is written. All asynchronous
+     * printers share the same writer thread; printing blocks while its bounded queue is full.
+     */
+    public static Printer ofAsync(int capacity, Level threshold) {
+      var writer = AsyncWriter.Shared.INSTANCE;
+      return new Printer(writer::out, writer::err, new Lines(capacity, threshold));
+    }
+
+    /**
+     * Writes queued lines to the standard output and error channels on a single thread.
+     *
+     * <p>If writing to a channel fails, the failure is reported once and all pending and later
+     * lines are printed directly to the fallback streams. Lines added after this writer was closed
+     * are written by the calling thread.
+     */
+    static final class AsyncWriter implements AutoCloseable {
+
+      private static final int CAPACITY = 8192;
+
+      private static final class Shared {
+        private static final AsyncWriter INSTANCE = new AsyncWriter();
+
+        static {
+          var hook = new Thread(INSTANCE::close, "bach-printer-flush");
+          Runtime.getRuntime().addShutdownHook(hook);
+        }
+      }
+
+      private record Entry(boolean error, String text) {}
+
+      private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>(CAPACITY);
+      private final Thread thread = new Thread(this::loop, "bach-printer");
+      private final WritableByteChannel out;
+      private final WritableByteChannel err;
+      private final PrintStream fallbackOut;
+      private final PrintStream fallbackErr;
+      private volatile boolean closed;
+      private boolean failed;
+
+      AsyncWriter() {
+        this(
+            new FileOutputStream(FileDescriptor.out).getChannel(),
+            new FileOutputStream(FileDescriptor.err).getChannel(),
+            System.out,
+            System.err);
+      }
+
+      AsyncWriter(
+          WritableByteChannel out,
+          WritableByteChannel err,
+          PrintStream fallbackOut,
+          PrintStream fallbackErr) {
+        this.out = out;
+        this.err = err;
+        this.fallbackOut = fallbackOut;
+        this.fallbackErr = fallbackErr;
+        thread.setDaemon(true);
+        thread.start();
+      }
+
+      void out(String text) {
+        add(new Entry(false, text));
+      }
+
+      void err(String text) {
+        add(new Entry(true, text));
+      }
+
+      /** Queues the entry, waiting for space, and drains the queue itself once closed. */
+      private void add(Entry entry) {
+        try {
+          while (!queue.offer(entry, 10, TimeUnit.MILLISECONDS)) {
+            if (closed) drain();
+            else LockSupport.unpark(thread);
+          }
+        } catch (InterruptedException exception) {
+          Thread.currentThread().interrupt();
+        }
+        if (closed) drain();
+        else LockSupport.unpark(thread);
+      }
+
+      private void loop() {
+        while (!closed) {
+          if (queue.isEmpty()) LockSupport.parkNanos(this, 100_000_000);
+          drain();
+        }
+      }
+
+      private synchronized void drain() {
+        var separator = System.lineSeparator();
+        var batch = new StringBuilder();
+        for (var entry = queue.poll(); entry != null; entry = queue.poll()) {
+          if (!entry.error()) {
+            batch.append(entry.text()).append(separator);
+            if (batch.length() >= 8192) write(false, batch);
+            continue;
+          }
+          write(false, batch);
+          write(true, batch.append(entry.text()).append(separator));
+        }
+        write(false, batch);
+      }
+
+      /** Writes and clears the batch, to the fallback stream if writing a channel failed. */
+      private void write(boolean error, StringBuilder batch) {
+        if (batch.isEmpty()) return;
+        if (!failed) {
+          try {
+            var buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(batch));
+            var channel = error ? err : out;
+            while (buffer.hasRemaining()) channel.write(buffer);
+            batch.setLength(0);
+            return;
+          } catch (IOException exception) {
+            failed = true;
+            fallbackErr.println("Printing asynchronously failed, printing directly: " + exception);
+          }
+        }
+        var fallback = error ? fallbackErr : fallbackOut;
+        fallback.print(batch);
+        fallback.flush();
+        batch.setLength(0);
+      }
+
+      @Override
+      public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        drain();
+      }
     }
 
     public void print(String string) {
@@ -371,8 +1287,28 @@ public record Bach(
     }
 
     private static int checksum(Bach bach, PrintWriter out, PrintWriter err, String... args) {
+      var usage =
+          """
+          Usage: checksum FILE [ALGORITHM [EXPECTED-CHECKSUM]]
+                 checksum --files [--algorithm=NAME] (FILE|DIRECTORY|GLOB)...""";
+      if (args.length > 0 && args[0].equals("--files")) {
+        var algorithm = bach.externals().defaultChecksumAlgorithm();
+        var patterns = new ArrayList<String>();
+        for (var arg : List.of(args).subList(1, args.length)) {
+          if (arg.startsWith("--algorithm=")) algorithm = arg.substring(12);
+          else patterns.add(arg);
+        }
+        if (patterns.isEmpty()) {
+          err.println(usage);
+          return 1;
+        }
+        var files = new ArrayList<Path>();
+        for (var pattern : patterns) files.addAll(PathSupport.expand(pattern));
+        bach.checksum(files, algorithm);
+        return 0;
+      }
       if (args.length < 1 || args.length > 3) {
-        err.println("Usage: checksum FILE [ALGORITHM [EXPECTED-CHECKSUM]]");
+        err.println(usage);
         return 1;
       }
       var file = Path.of(args[0]);
@@ -385,10 +1321,20 @@ public record Bach(
     }
 
     private static int compile(Bach bach, PrintWriter out, PrintWriter err, String... args) {
-      bach.compile();
+      bach.compile(List.of(args));
       return 0;
     }
 
+    private static int daemon(Bach bach, PrintWriter out, PrintWriter err, String... args) {
+      try {
+        DaemonSupport.serve(bach);
+        return 0;
+      } catch (Exception exception) {
+        exception.printStackTrace(err);
+        return 1;
+      }
+    }
+
     private static int download(Bach bach, PrintWriter out, PrintWriter err, String... args) {
       if (args.length == 0) { // everything
         bach.download(bach.externals().programs());
@@ -415,7 +1361,47 @@ public record Bach(
     }
 
     private static int test(Bach bach, PrintWriter out, PrintWriter err, String... args) {
-      bach.test();
+      var arguments = new ArrayList<>(List.of(args));
+      for (int i = 0; i < arguments.size(); i++) {
+        var argument = arguments.get(i);
+        if (argument.equals("--shards") && i + 1 < arguments.size()) {
+          arguments.remove(i);
+          bach.test(Integer.parseInt(arguments.remove(i)), arguments);
+          return 0;
+        }
+        if (argument.startsWith("--shards=")) {
+          arguments.remove(i);
+          bach.test(Integer.parseInt(argument.substring(9)), arguments);
+          return 0;
+        }
+      }
+      bach.test(arguments);
+      return 0;
+    }
+
+    private static int profile(Bach bach, PrintWriter out, PrintWriter err, String... args) {
+      var file = bach.paths().out().resolve("bach-logbook.jfr");
+      var top = 10;
+      Path trace = null;
+      for (var argument : args) {
+        if (argument.startsWith("--top=")) top = Integer.parseInt(argument.substring(6));
+        else if (argument.startsWith("--trace=")) trace = Path.of(argument.substring(8));
+        else if (!argument.startsWith("--")) file = Path.of(argument);
+        else {
+          err.println("Usage: profile [--top=N] [--trace=TRACE-JSON-FILE] [LOGBOOK-JFR-FILE]");
+          return 1;
+        }
+      }
+      bach.profile(file, top, trace);
+      return 0;
+    }
+
+    private static int watch(Bach bach, PrintWriter out, PrintWriter err, String... args) {
+      if (args.length == 0) {
+        err.println("Usage: watch TOOL-NAME [TOOL-ARGS...]");
+        return 1;
+      }
+      bach.watch(ToolCall.of(args[0]).with(Stream.of(args).skip(1)));
       return 0;
     }
 
@@ -446,34 +1432,168 @@ public record Bach(
     }
   }
 
-  public record Paths(Path root, Path out) {}
+  public record Paths(Path root, Path out) {
+    /** {@return the directory of external modules, put on the module path of all spaces} */
+    public Path externalModules() {
+      return root.resolve(".bach/external-modules");
+    }
+  }
 
-  public record Externals(String defaultChecksumAlgorithm, Map<Path, URI> programs) {}
+  /** Settings of external assets, read from a properties file on first access. */
+  public static final class Externals {
 
-  public record Tools(ToolFinder finder) {}
+    private record Settings(
+        String defaultChecksumAlgorithm, int downloadConcurrency, Map<Path, URI> programs) {}
 
-  public enum Flag {
-    VERBOSE
-  }
+    private final Path file;
+    private volatile Settings settings;
 
-  public record Options(
+    Externals(Path file) {
+      this.file = file;
+    }
+
+    public Path file() {
+      return file;
+    }
+
+    public String defaultChecksumAlgorithm() {
+      return settings().defaultChecksumAlgorithm();
+    }
+
+    public int downloadConcurrency() {
+      return settings().downloadConcurrency();
+    }
+
+    public Map<Path, URI> programs() {
+      return settings().programs();
+    }
+
+    private Settings settings() {
+      var current = settings;
+      if (current != null) return current;
+      synchronized (this) {
+        if (settings == null) settings = load();
+        return settings;
+      }
+    }
+
+    private Settings load() {
+      var properties = PathSupport.properties(file);
+      var programs = new TreeMap<Path, URI>();
+      for (var key : properties.stringPropertyNames()) {
+        if (key.startsWith(".bach/external-tool-program/")) {
+          var to = Path.of(key).normalize();
+          var from = URI.create(properties.getProperty(key));
+          programs.put(to, from);
+        }
+      }
+      return new Settings(
+          properties.getProperty("bach.externals.default-checksum-algorithm", "SHA-256"),
+          Integer.parseInt(properties.getProperty("bach.externals.download-concurrency", "4")),
+          Collections.unmodifiableMap(programs));
+    }
+  }
+
+  public record Tools(ToolFinder finder) {}
+
+  public enum Flag {
+    CACHE,
+    CLIENT,
+    LOGBOOK_STREAM,
+    NO_LOGBOOK,
+    VERBOSE
+  }
+
+  /** The ways to print lines to the console. */
+  public enum PrinterMode {
+    /** Print each line on the calling thread. */
+    DIRECT,
+    /** Queue lines to be printed by a dedicated writer thread. */
+    ASYNC,
+    /** Like {@link #ASYNC}, but print the output of each tool call as a contiguous block. */
+    GROUPED
+  }
+
+  /** The ways to run an external Java program. */
+  public enum ProgramMode {
+    /** Launch a new Java process for each call. */
+    PROCESS,
+    /** Dispatch calls to a pool of warm Java processes, one pool per program. */
+    WORKER,
+    /** Load programs into isolated class loaders or module layers of this Java process. */
+    IN_PROCESS
+  }
+
+  public record Options(
       Set<Flag> flags,
       Level __logbook_threshold,
+      int __logbook_output_limit,
+      String __logbook_settings,
+      long __logbook_max_size,
+      Duration __logbook_max_age,
       Path __chroot,
       Path __destination,
-      ToolCall seed) {
+      Duration __program_timeout,
+      Path __program_output,
+      ProgramMode __program_mode,
+      PrinterMode __printer_mode,
+      ToolCall seed,
+      Changes changes) {
+
+    /** {@return a copy of these options with the given changes} */
+    public Options with(Changes changes) {
+      return new Options(
+          flags,
+          __logbook_threshold,
+          __logbook_output_limit,
+          __logbook_settings,
+          __logbook_max_size,
+          __logbook_max_age,
+          __chroot,
+          __destination,
+          __program_timeout,
+          __program_output,
+          __program_mode,
+          __printer_mode,
+          seed,
+          changes);
+    }
 
     static Options of(String... args) {
       var flags = EnumSet.noneOf(Flag.class);
       var level = Level.INFO;
+      var limit = 64;
+      String settings = null;
+      var maxSize = 0L;
+      Duration maxAge = null;
       var root = Path.of("");
       var destination = Path.of(".bach", "out");
+      Duration timeout = null;
+      Path output = null;
+      var mode = ProgramMode.PROCESS;
+      var printer = PrinterMode.DIRECT;
       ToolCall seed = null;
 
       var arguments = new ArrayDeque<>(List.of(args));
       while (!arguments.isEmpty()) {
         var argument = arguments.removeFirst();
         if (argument.startsWith("--")) {
+          if (argument.equals("--cache")) {
+            flags.add(Flag.CACHE);
+            continue;
+          }
+          if (argument.equals("--client")) {
+            flags.add(Flag.CLIENT);
+            continue;
+          }
+          if (argument.equals("--no-logbook")) {
+            flags.add(Flag.NO_LOGBOOK);
+            continue;
+          }
+          if (argument.equals("--logbook-stream")) {
+            flags.add(Flag.LOGBOOK_STREAM);
+            continue;
+          }
           if (argument.equals("--verbose")) {
             flags.add(Flag.VERBOSE);
             continue;
@@ -485,6 +1605,22 @@ public record Bach(
             level = Level.valueOf(value);
             continue;
           }
+          if (key.equals("--logbook-output-limit")) {
+            limit = Integer.parseInt(value);
+            continue;
+          }
+          if (key.equals("--logbook-settings")) {
+            settings = value;
+            continue;
+          }
+          if (key.equals("--logbook-max-size")) {
+            maxSize = Long.parseLong(value) * 1024 * 1024;
+            continue;
+          }
+          if (key.equals("--logbook-max-age")) {
+            maxAge = Duration.ofSeconds(Long.parseLong(value));
+            continue;
+          }
           if (key.equals("--chroot")) {
             root = Path.of(value).normalize();
             continue;
@@ -493,16 +1629,119 @@ public record Bach(
             destination = Path.of(value).normalize();
             continue;
           }
+          if (key.equals("--program-timeout")) {
+            timeout = Duration.ofSeconds(Long.parseLong(value));
+            continue;
+          }
+          if (key.equals("--program-output")) {
+            output = Path.of(value).normalize();
+            continue;
+          }
+          if (key.equals("--program-mode")) {
+            mode = ProgramMode.valueOf(value.toUpperCase(Locale.ROOT));
+            continue;
+          }
+          if (key.equals("--printer-mode")) {
+            printer = PrinterMode.valueOf(value.toUpperCase(Locale.ROOT));
+            continue;
+          }
           throw new IllegalArgumentException("Unsupported option `%s`".formatted(key));
         }
         seed = new ToolCall(argument, arguments.stream().toList());
         break;
       }
-      return new Options(Set.copyOf(flags), level, root, root.resolve(destination), seed);
+      var out = root.resolve(destination);
+      return new Options(
+          Set.copyOf(flags),
+          level,
+          limit,
+          settings,
+          maxSize,
+          maxAge,
+          root,
+          out,
+          timeout,
+          output,
+          mode,
+          printer,
+          seed,
+          null);
+    }
+  }
+
+  /**
+   * Files changed since the previous iteration of a {@code watch} loop.
+   *
+   * <p>The set of changed paths starts with the paths reported by the watch service and grows
+   * during an iteration: the files referenced by a call that ran are added, as the call may have
+   * written them. A later call reading such a file, like one packaging the classes compiled by an
+   * earlier call, is therefore affected, too.
+   *
+   * @param paths the absolute paths of all changed files and directories
+   */
+  public record Changes(Set<Path> paths) {
+
+    public Changes {
+      var concurrent = ConcurrentHashMap.<Path>newKeySet();
+      concurrent.addAll(paths);
+      paths = concurrent;
+    }
+
+    /**
+     * {@return {@code true} if the given call may be affected by these changes}
+     *
+     * <p>A call is affected if one of the existing files or directories referenced by its
+     * arguments contains a changed path or is contained in a changed directory. A call not
+     * referencing any existing file is always affected.
+     */
+    public boolean affects(ToolCall call) {
+      var referenced = referenced(call);
+      if (referenced.isEmpty()) return true;
+      for (var path : referenced) {
+        for (var changed : paths) {
+          if (changed.startsWith(path) || path.startsWith(changed)) return true;
+        }
+      }
+      return false;
+    }
+
+    /** Adds the existing files and directories referenced by a call that ran to the changes. */
+    public void ran(ToolCall call) {
+      paths.addAll(referenced(call));
+    }
+
+    private static List<Path> referenced(ToolCall call) {
+      var directory = Path.of("").toAbsolutePath();
+      return call.arguments().stream()
+          .flatMap(Changes::parse)
+          .filter(Files::exists)
+          .map(path -> path.toAbsolutePath().normalize())
+          .filter(path -> !path.equals(directory))
+          .toList();
+    }
+
+    private static Stream<Path> parse(String argument) {
+      var value = argument.substring(argument.indexOf('=') + 1);
+      var paths = new ArrayList<Path>();
+      for (var element : value.split(File.pathSeparator)) {
+        if (element.isBlank()) continue;
+        try {
+          paths.add(Path.of(element));
+        } catch (InvalidPathException exception) {
+          // not a path
+        }
+      }
+      return paths.stream();
     }
   }
 
   public record ToolCall(String name, List<String> arguments) {
+    /** {@return the name of the tool followed by all arguments, separated by spaces} */
+    public String toCommandLine() {
+      if (arguments.isEmpty()) return name;
+      return name + ' ' + String.join(" ", arguments);
+    }
+
     public static ToolCall of(String name, Object... arguments) {
       if (arguments.length == 0) return new ToolCall(name, List.of());
       if (arguments.length == 1) return new ToolCall(name, List.of(arguments[0].toString()));
@@ -618,21 +1857,83 @@ public record Bach(
       record BasicToolProvider(String name, Properties properties) implements Tool.Provider {
         @Override
         public int run(Bach bach, PrintWriter out, PrintWriter err, String... args) {
-          var commands =
-              properties.stringPropertyNames().stream()
-                  .sorted(Comparator.comparing(Integer::parseInt))
-                  .map(properties::getProperty)
-                  .toList();
-          for (var command : commands) {
-            var lines = command.lines().map(line -> replace(bach, line)).toList();
+          var calls = new TreeMap<Integer, ToolCall>();
+          var afters = new TreeMap<Integer, List<Integer>>();
+          for (var key : properties.stringPropertyNames()) {
+            var value = properties.getProperty(key);
+            if (key.endsWith(".after")) {
+              var number = Integer.parseInt(key.substring(0, key.length() - ".after".length()));
+              var after = Stream.of(value.split("[,\\s]+")).filter(s -> !s.isBlank());
+              afters.put(number, after.map(Integer::parseInt).toList());
+              continue;
+            }
+            var lines = value.lines().map(line -> replace(bach, line)).toList();
             var name = lines.get(0);
             if (name.toUpperCase().startsWith("GOTO")) throw new Error("GOTO IS TOO BASIC!");
-            var call = ToolCall.of(name).with(lines.stream().skip(1));
-            bach.run(call);
+            calls.put(Integer.parseInt(key), ToolCall.of(name).with(lines.stream().skip(1)));
           }
+          if (afters.isEmpty()) {
+            calls.values().forEach(call -> run(bach, call));
+            return 0;
+          }
+          run(bach, calls, afters);
           return 0;
         }
 
+        /** Runs the given call, unless it is not affected by the changes of a watch iteration. */
+        private void run(Bach bach, ToolCall call) {
+          var changes = bach.options().changes();
+          if (changes == null) {
+            bach.run(call);
+            return;
+          }
+          if (changes.affects(call)) {
+            bach.run(call);
+            changes.ran(call);
+            return;
+          }
+          bach.log(Level.DEBUG, () -> "Skip unaffected " + call.toCommandLine());
+        }
+
+        /**
+         * Runs the given calls as a dependency graph.
+         *
+         * <p>A call declared with an {@code NN.after} key starts after the listed calls completed,
+         * an empty list lets it start immediately. All other calls start after their predecessor
+         * in numerical order completed. Ready calls are run on a bounded thread pool.
+         */
+        private void run(
+            Bach bach, Map<Integer, ToolCall> calls, Map<Integer, List<Integer>> afters) {
+          afters.forEach(
+              (number, after) -> {
+                for (var earlier : after) {
+                  if (earlier < number && calls.containsKey(earlier)) continue;
+                  var message = "Step %d must run after an earlier step, but got: %d";
+                  throw new IllegalArgumentException(message.formatted(number, earlier));
+                }
+              });
+          var threads = Math.min(calls.size(), Runtime.getRuntime().availableProcessors());
+          var executor = Executors.newFixedThreadPool(threads);
+          try {
+            var futures = new TreeMap<Integer, CompletableFuture<Void>>();
+            for (var entry : calls.entrySet()) {
+              var number = entry.getKey();
+              var previous = futures.isEmpty() ? List.<Integer>of() : List.of(futures.lastKey());
+              var dependencies =
+                  afters.getOrDefault(number, previous).stream()
+                      .map(futures::get)
+                      .toArray(CompletableFuture<?>[]::new);
+              var call = entry.getValue();
+              var ready = CompletableFuture.allOf(dependencies);
+              var runnable = ThreadSupport.inherit(() -> run(bach, call));
+              futures.put(number, ready.thenRunAsync(runnable, executor));
+            }
+            ThreadSupport.joinAll(futures.values());
+          } finally {
+            executor.shutdownNow();
+          }
+        }
+
         private String replace(Bach bach, String line) {
           return line.trim()
               .replace("{{bach.paths.root}}", PathSupport.normalized(bach.paths.root))
@@ -670,7 +1971,12 @@ public record Bach(
     }
 
     static ToolFinder ofPrograms(Path directory, Path java, String argsfile) {
-      record ProgramToolFinder(Path path, Path java, String argsfile) implements ToolFinder {
+      return ofPrograms(directory, java, argsfile, ProgramMode.PROCESS);
+    }
+
+    static ToolFinder ofPrograms(Path directory, Path java, String argsfile, ProgramMode mode) {
+      record ProgramToolFinder(Path path, Path java, String argsfile, ProgramMode mode)
+          implements ToolFinder {
 
         @Override
         public List<ToolProvider> findAll() {
@@ -692,6 +1998,12 @@ public record Bach(
           }
           var jars = PathSupport.list(directory, PathSupport::isJarFile);
           if (jars.size() == 1) {
+            if (mode == ProgramMode.WORKER) {
+              return Optional.of(new WorkerToolProvider(name, java, jars.get(0)));
+            }
+            if (mode == ProgramMode.IN_PROCESS) {
+              return Optional.of(new InProcessToolProvider(name, jars.get(0)));
+            }
             command.add("-jar");
             command.add(jars.get(0).toString());
             return Optional.of(new ExecuteProgramToolProvider(name, command));
@@ -705,7 +2017,8 @@ public record Bach(
         }
       }
 
-      record ProgramsToolFinder(Path path, Path java, String argsfile) implements ToolFinder {
+      record ProgramsToolFinder(Path path, Path java, String argsfile, ProgramMode mode)
+          implements ToolFinder {
         @Override
         public String title() {
           return "ProgramsToolFinder (%s -> %s)".formatted(path, java);
@@ -714,19 +2027,35 @@ public record Bach(
         @Override
         public List<ToolProvider> findAll() {
           return PathSupport.list(path, Files::isDirectory).stream()
-              .map(directory -> new ProgramToolFinder(directory, java, argsfile))
+              .map(directory -> new ProgramToolFinder(directory, java, argsfile, mode))
               .map(ToolFinder::findAll)
               .flatMap(List::stream)
               .toList();
         }
       }
-      return new ProgramsToolFinder(directory, java, argsfile);
+      return new ProgramsToolFinder(directory, java, argsfile, mode);
     }
 
     static ToolFinder compose(ToolFinder... finders) {
       return new CompositeToolFinder(List.of(finders));
     }
 
+    /**
+     * {@return a finder that memoizes the tools found by the given finder}
+     *
+     * <p>The returned finder remembers the result of looking up a tool by its name, and the list of
+     * all tools once requested, until the last-modified time of one of the watched directories or
+     * of an entry up to two levels below them changes. That covers files read by the finders of
+     * basic tools and programs, like a properties file or a {@code java.args} file edited in
+     * place. Looking up a single tool doesn't find all tools, which keeps startup fast.
+     *
+     * @param finder the finder to index
+     * @param directories the directories to watch for changes
+     */
+    static ToolFinder cached(ToolFinder finder, Path... directories) {
+      return new CachingToolFinder(finder, List.of(directories));
+    }
+
     record CompositeToolFinder(List<ToolFinder> finders) implements ToolFinder {
       @Override
       public String title() {
@@ -755,149 +2084,2496 @@ public record Bach(
       }
     }
 
-    record ExecuteProgramToolProvider(String name, List<String> command) implements ToolProvider {
+    final class CachingToolFinder implements ToolFinder {
+
+      /** Tools found for one state of the watched directories, looked up lazily. */
+      private static final class Index {
+        private final Map<Path, FileTime> stamps;
+        private final Map<String, Optional<ToolProvider>> names = new ConcurrentHashMap<>();
+        private volatile List<ToolProvider> tools;
+
+        Index(Map<Path, FileTime> stamps) {
+          this.stamps = stamps;
+        }
+      }
+
+      private final ToolFinder finder;
+      private final List<Path> directories;
+      private volatile Index index;
+
+      CachingToolFinder(ToolFinder finder, List<Path> directories) {
+        this.finder = finder;
+        this.directories = directories;
+      }
+
+      @Override
+      public String title() {
+        return finder.title();
+      }
+
+      @Override
+      public List<ToolProvider> findAll() {
+        var current = index();
+        var tools = current.tools;
+        if (tools == null) {
+          tools = finder.findAll();
+          current.tools = tools;
+        }
+        return tools;
+      }
+
+      @Override
+      public Optional<ToolProvider> find(String name) {
+        return index().names.computeIfAbsent(name, finder::find);
+      }
+
+      @Override
+      public void visit(int depth, BiConsumer<Integer, ToolFinder> visitor) {
+        finder.visit(depth, visitor);
+      }
+
+      private Index index() {
+        var stamps = stamps();
+        var current = index;
+        if (current != null && current.stamps.equals(stamps)) return current;
+        synchronized (this) {
+          current = index;
+          if (current != null && current.stamps.equals(stamps)) return current;
+          current = new Index(stamps);
+          index = current;
+          return current;
+        }
+      }
+
+      /** {@return the last-modified times of the watched directories and of their entries} */
+      private Map<Path, FileTime> stamps() {
+        var stamps = new HashMap<Path, FileTime>();
+        for (var directory : directories) {
+          if (!Files.isDirectory(directory)) continue; // noticed once it is created
+          try {
+            Files.walkFileTree(
+                directory,
+                Set.of(),
+                2,
+                new SimpleFileVisitor<>() {
+                  @Override
+                  public FileVisitResult preVisitDirectory(
+                      Path path, BasicFileAttributes attributes) {
+                    stamps.put(path, attributes.lastModifiedTime());
+                    return FileVisitResult.CONTINUE;
+                  }
+
+                  @Override
+                  public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    stamps.put(path, attributes.lastModifiedTime());
+                    return FileVisitResult.CONTINUE;
+                  }
+
+                  @Override
+                  public FileVisitResult visitFileFailed(Path path, IOException exception) {
+                    return FileVisitResult.CONTINUE; // deleted while walking
+                  }
+                });
+          } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+          }
+        }
+        return stamps;
+      }
+    }
+
+    /**
+     * A tool provider that runs a program in a new process.
+     *
+     * <p>The standard output and error streams of the process are drained line by line on pooled
+     * daemon threads, which are joined before the exit code is returned. A drainer still blocked
+     * a few seconds after the process ended, e.g. by a detached descendant holding the stream open,
+     * is abandoned and its stream closed. If a timeout is given, or configured via {@code
+     * --program-timeout}, a process still running after it expired is killed along with all its
+     * descendants, as it is when the calling thread is interrupted. If an output file is given, or
+     * an output directory configured via {@code --program-output}, both streams of the process are
+     * redirected to that file instead. A file in the output directory is named after the tool and
+     * the identifier of the run, like {@code javadoc-7.log}.
+     *
+     * @param name the name of the tool
+     * @param command the program and its leading arguments
+     * @param timeout the maximum time to wait for the process, or {@code null} to wait forever
+     * @param output the file to redirect the output to, or {@code null} to forward it
+     */
+    record ExecuteProgramToolProvider(
+        String name, List<String> command, Duration timeout, Path output) implements Tool.Provider {
+
+      private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(5);
+
+      private static final ExecutorService DRAINERS =
+          Executors.newCachedThreadPool(
+              runnable -> {
+                var thread = new Thread(runnable, "bach-process-drainer");
+                thread.setDaemon(true);
+                return thread;
+              });
+
+      public ExecuteProgramToolProvider(String name, List<String> command) {
+        this(name, command, null, null);
+      }
+
+      public ExecuteProgramToolProvider withTimeout(Duration timeout) {
+        return new ExecuteProgramToolProvider(name, command, timeout, output);
+      }
+
+      public ExecuteProgramToolProvider withOutput(Path output) {
+        return new ExecuteProgramToolProvider(name, command, timeout, output);
+      }
 
       @Override
       public int run(PrintWriter out, PrintWriter err, String... arguments) {
+        return execute(out, err, timeout, output, arguments);
+      }
+
+      @Override
+      public int run(Bach bach, PrintWriter out, PrintWriter err, String... arguments) {
+        var timeout = this.timeout != null ? this.timeout : bach.options().__program_timeout();
+        var directory = bach.options().__program_output();
+        var output =
+            this.output != null || directory == null
+                ? this.output
+                : directory.resolve(name + "-" + ThreadSupport.currentRun() + ".log");
+        return execute(out, err, timeout, output, arguments);
+      }
+
+      private int execute(
+          PrintWriter out, PrintWriter err, Duration timeout, Path output, String... arguments) {
         var builder = new ProcessBuilder(new ArrayList<>(command));
         builder.command().addAll(List.of(arguments));
+        Process process = null;
         try {
-          var process = builder.start();
-          new Thread(new StreamLineConsumer(process.getInputStream(), out::println)).start();
-          new Thread(new StreamLineConsumer(process.getErrorStream(), err::println)).start();
-          return process.waitFor();
+          if (output != null) {
+            var parent = output.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(ProcessBuilder.Redirect.to(output.toFile()));
+          }
+          process = builder.start();
+          var drainers =
+              List.of(
+                  DRAINERS.submit(new StreamLineConsumer(process.getInputStream(), out::println)),
+                  DRAINERS.submit(new StreamLineConsumer(process.getErrorStream(), err::println)));
+          var millis = timeout == null ? Long.MAX_VALUE : timeout.toMillis();
+          var completed = process.waitFor(millis, TimeUnit.MILLISECONDS);
+          if (!completed) kill(process);
+          for (var drainer : drainers) {
+            try {
+              drainer.get(DRAIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException exception) {
+              drainer.cancel(true);
+              process.getInputStream().close();
+              process.getErrorStream().close();
+              err.println("Stopped draining output of %s after %s".formatted(name, DRAIN_TIMEOUT));
+            }
+          }
+          if (output != null) out.println("Output written to " + output.toUri());
+          if (completed) return process.exitValue();
+          err.println("Killed %s after timeout of %s".formatted(name, timeout));
+          return -1;
+        } catch (InterruptedException exception) {
+          if (process != null) kill(process);
+          Thread.currentThread().interrupt();
+          err.println("Killed %s after the calling thread was interrupted".formatted(name));
+          return -1;
         } catch (Exception exception) {
+          if (process != null) kill(process);
           exception.printStackTrace(err);
           return -1;
         }
       }
-    }
-  }
 
-  record StreamLineConsumer(InputStream stream, Consumer<String> consumer) implements Runnable {
-    public void run() {
-      new BufferedReader(new InputStreamReader(stream)).lines().forEach(consumer);
+      /** Forcibly destroys the given process and all its descendants. */
+      private static void kill(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+      }
     }
-  }
-
-  static final class ForwardingStringWriter extends StringWriter {
-
-    private int beginIndex = 0;
-    private final Consumer<String> consumer;
 
-    ForwardingStringWriter(Consumer<String> consumer) {
-      this.consumer = consumer;
-    }
+    /**
+     * A tool provider that runs a program's jar file in this Java process.
+     *
+     * <p>A modular jar file is defined as a module layer on top of the boot layer, any other jar
+     * file is loaded by a {@link URLClassLoader} with the platform class loader as its parent. If
+     * the jar file provides an implementation of {@link ToolProvider}, calls are delegated to it.
+     * Otherwise, the main method of the program's main class is invoked with {@link System#out} and
+     * {@link System#err} redirected to the writers of the call. As these streams are global, such
+     * calls are serialized. A program calling {@link System#exit(int)} terminates this process,
+     * run it in {@link ProgramMode#WORKER} mode instead.
+     *
+     * <p>Loaded jar files are cached by their path and reloaded when their modification time
+     * changed. The class loader of a replaced jar file is closed once no call uses it anymore.
+     *
+     * @param name the name of the tool
+     * @param jar the jar file of the program
+     */
+    record InProcessToolProvider(String name, Path jar) implements ToolProvider {
 
-    @Override
-    public void flush() {
-      var buffer = getBuffer();
-      if (buffer.isEmpty()) return;
-      var string = buffer.toString();
-      var length = string.length();
-      if (beginIndex >= length) return;
-      consumer.accept(string.substring(beginIndex));
-      beginIndex = length;
-    }
-  }
+      private static final Map<Path, Program> PROGRAMS = new ConcurrentHashMap<>();
 
-  static final class PathSupport {
+      private static final Object SYSTEM_STREAMS_LOCK = new Object();
 
-    static String computeChecksum(Path path, String algorithm) {
-      if (Files.notExists(path)) throw new RuntimeException("File not found: " + path);
-      try {
-        if ("size".equalsIgnoreCase(algorithm)) return Long.toString(Files.size(path));
-        var md = MessageDigest.getInstance(algorithm);
-        try (var source = new BufferedInputStream(new FileInputStream(path.toFile()));
-            var target = new DigestOutputStream(OutputStream.nullOutputStream(), md)) {
-          source.transferTo(target);
-        }
-        return String.format(
-            "%0" + (md.getDigestLength() * 2) + "x", new BigInteger(1, md.digest()));
-      } catch (Exception exception) {
-        throw new RuntimeException(exception);
-      }
-    }
+      private record Program(
+          FileTime time, ClassLoader loader, ToolProvider tool, String main, AtomicInteger calls) {}
 
-    static Properties properties(Path path) {
-      var properties = new Properties();
-      if (Files.exists(path)) {
+      @Override
+      public int run(PrintWriter out, PrintWriter err, String... arguments) {
+        var thread = Thread.currentThread();
+        var context = thread.getContextClassLoader();
+        Program program = null;
         try {
-          properties.load(new FileInputStream(path.toFile()));
+          program = acquire();
+          thread.setContextClassLoader(program.loader());
+          if (program.tool() != null) return program.tool().run(out, err, arguments);
+          if (program.main() == null) throw new IllegalStateException("No main class: " + jar);
+          var main = program.loader().loadClass(program.main()).getMethod("main", String[].class);
+          synchronized (SYSTEM_STREAMS_LOCK) {
+            var stdout = System.out;
+            var stderr = System.err;
+            var o = new LineOutputStream(out);
+            var e = new LineOutputStream(err);
+            System.setOut(new PrintStream(o, true, StandardCharsets.UTF_8));
+            System.setErr(new PrintStream(e, true, StandardCharsets.UTF_8));
+            try {
+              main.invoke(null, (Object) arguments);
+              return 0;
+            } catch (InvocationTargetException exception) {
+              exception.getCause().printStackTrace();
+              return 1;
+            } finally {
+              System.out.flush();
+              System.err.flush();
+              System.setOut(stdout);
+              System.setErr(stderr);
+              o.close();
+              e.close();
+            }
+          }
         } catch (Exception exception) {
-          throw new RuntimeException(exception);
+          exception.printStackTrace(err);
+          return -1;
+        } finally {
+          thread.setContextClassLoader(context);
+          if (program != null) release(program);
         }
       }
-      return properties;
-    }
 
-    static boolean isJarFile(Path path) {
-      return nameOrElse(path, "").endsWith(".jar") && Files.isRegularFile(path);
-    }
+      /** {@return the current program of the jar file, (re-)loaded if needed, marked as in use} */
+      private Program acquire() throws Exception {
+        var time = Files.getLastModifiedTime(jar);
+        synchronized (PROGRAMS) {
+          var program = PROGRAMS.get(jar);
+          if (program == null || !program.time().equals(time)) {
+            var replaced = program;
+            program = load(time);
+            PROGRAMS.put(jar, program);
+            if (replaced != null && replaced.calls().get() == 0) close(replaced);
+          }
+          program.calls().incrementAndGet();
+          return program;
+        }
+      }
 
-    static boolean isJavaFile(Path path) {
-      return nameOrElse(path, "").endsWith(".java") && Files.isRegularFile(path);
-    }
+      private void release(Program program) {
+        synchronized (PROGRAMS) {
+          var unused = program.calls().decrementAndGet() == 0;
+          if (unused && PROGRAMS.get(jar) != program) close(program);
+        }
+      }
 
-    static boolean isModuleInfoJavaFile(Path path) {
-      return "module-info.java".equals(name(path)) && Files.isRegularFile(path);
-    }
+      private static void close(Program program) {
+        if (!(program.loader() instanceof URLClassLoader loader)) return;
+        try {
+          loader.close();
+        } catch (IOException exception) {
+          // best effort: the loader is not used by any call anymore
+        }
+      }
 
-    static List<Path> list(Path directory, DirectoryStream.Filter<? super Path> filter) {
-      if (Files.notExists(directory)) return List.of();
-      var paths = new TreeSet<>(Comparator.comparing(Path::toString));
-      try (var stream = Files.newDirectoryStream(directory, filter)) {
-        stream.forEach(paths::add);
-      } catch (Exception exception) {
-        throw new RuntimeException(exception);
+      private Program load(FileTime time) throws Exception {
+        String main;
+        boolean modular;
+        try (var file = new JarFile(jar.toFile(), true, ZipFile.OPEN_READ, Runtime.version())) {
+          var manifest = file.getManifest();
+          main = manifest == null ? null : manifest.getMainAttributes().getValue("Main-Class");
+          modular = file.getJarEntry("module-info.class") != null;
+        }
+        if (!modular) {
+          var urls = new URL[] {jar.toUri().toURL()};
+          var loader = new URLClassLoader(name, urls, ClassLoader.getPlatformClassLoader());
+          var tool = findToolProvider(ServiceLoader.load(ToolProvider.class, loader), loader);
+          return new Program(time, loader, tool, main, new AtomicInteger());
+        }
+        var finder = ModuleFinder.of(jar);
+        var descriptor = finder.findAll().iterator().next().descriptor();
+        var boot = ModuleLayer.boot();
+        var roots = Set.of(descriptor.name());
+        var configuration = boot.configuration().resolveAndBind(finder, ModuleFinder.of(), roots);
+        var parent = ClassLoader.getPlatformClassLoader();
+        var layer = boot.defineModulesWithOneLoader(configuration, parent);
+        var loader = layer.findLoader(descriptor.name());
+        var tool = findToolProvider(ServiceLoader.load(layer, ToolProvider.class), loader);
+        var mainClass = descriptor.mainClass().orElse(main);
+        return new Program(time, loader, tool, mainClass, new AtomicInteger());
       }
-      return List.copyOf(paths);
-    }
 
-    static String name(Path path) {
-      return nameOrElse(path, null);
-    }
+      private ToolProvider findToolProvider(
+          ServiceLoader<ToolProvider> services, ClassLoader loader) {
+        var providers =
+            services.stream()
+                .filter(provider -> provider.type().getClassLoader() == loader)
+                .map(ServiceLoader.Provider::get)
+                .toList();
+        if (providers.isEmpty()) return null;
+        var provider =
+            providers.stream()
+                .filter(candidate -> candidate.name().equals(name))
+                .findFirst()
+                .orElse(providers.get(0));
+        return new ToolProvider() {
+          @Override
+          public String name() {
+            return name;
+          }
 
-    static String nameOrElse(Path path, String defautName) {
-      var normalized = path.normalize();
-      var candidate = normalized.toString().isEmpty() ? normalized.toAbsolutePath() : normalized;
-      var name = candidate.getFileName();
-      return name != null ? name.toString() : defautName;
-    }
+          @Override
+          public int run(PrintWriter out, PrintWriter err, String... args) {
+            return provider.run(out, err, args);
+          }
+        };
+      }
 
-    static String normalized(Path path) {
-      var string = path.normalize().toString();
-      return string.isEmpty() ? "." : string;
-    }
-  }
+      /** Forwards complete lines of UTF-8 encoded bytes to a print writer. */
+      private static final class LineOutputStream extends OutputStream {
+        private final PrintWriter writer;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
 
-  static final class StringSupport {
-    record Property(String key, String value) {}
+        LineOutputStream(PrintWriter writer) {
+          this.writer = writer;
+        }
 
-    static Property parseProperty(String string) {
-      return StringSupport.parseProperty(string, '=');
-    }
+        @Override
+        public synchronized void write(int b) {
+          if (b != '\n') {
+            line.write(b);
+            return;
+          }
+          writer.println(line.toString(StandardCharsets.UTF_8).stripTrailing());
+          line.reset();
+        }
 
-    static Property parseProperty(String string, char separator) {
-      int index = string.indexOf(separator);
-      if (index < 0) {
-        var message = "Expected a `KEY%sVALUE` string, but got: %s".formatted(separator, string);
-        throw new IllegalArgumentException(message);
+        @Override
+        public synchronized void close() {
+          if (line.size() > 0) writer.print(line.toString(StandardCharsets.UTF_8));
+          line.reset();
+          writer.flush();
+        }
       }
-      var key = string.substring(0, index);
-      var value = string.substring(index + 1);
-      return new Property(key, value);
     }
-  }
 
-  static final class ToolNotFoundException extends RuntimeException {
-    @java.io.Serial private static final long serialVersionUID = -417539767734303099L;
+    /**
+     * A tool provider that dispatches calls to warm Java processes running a program's jar file.
+     *
+     * <p>A worker process loads the jar file once and serves calls read from its standard input
+     * stream until that stream is closed. If the jar file provides an implementation of {@link
+     * ToolProvider}, the worker runs it. Otherwise, the worker runs the main method of the jar's
+     * {@code Main-Class} through a tool provider. Both standard streams of the worker are
+     * redirected during a call, and to its standard error stream between calls.
+     *
+     * <p>A call is sent as a line with the number of arguments followed by one line per
+     * URL-encoded argument. The worker answers with lines prefixed by {@code 1} for standard output
+     * and by {@code 2} for standard error, and a final line prefixed by {@code 0} carrying the exit
+     * code. Lines a worker writes directly to its standard error stream are forwarded to the error
+     * stream of the current call. Idle workers are pooled per jar file; surplus workers are
+     * destroyed after their call.
+     *
+     * <p>Only programs returning from their main method benefit from warm workers. A worker exiting
+     * during a call, for example by calling {@link System#exit(int)}, is treated as a crash: its
+     * exit value is the exit code of the call. As such a program would take down every worker,
+     * all later calls of its jar file are run in a new process via {@code java -jar} instead.
+     *
+     * @param name the name of the tool
+     * @param java the Java launcher to start workers with
+     * @param jar the jar file of the program
+     */
+    record WorkerToolProvider(String name, Path java, Path jar) implements ToolProvider {
+
+      private static final int MAX_IDLE_WORKERS = 2;
+
+      private static final Map<Path, Deque<Worker>> IDLE_WORKERS = new ConcurrentHashMap<>();
+
+      private static final Set<Path> EXITING_PROGRAMS = ConcurrentHashMap.newKeySet();
+
+      @Override
+      public int run(PrintWriter out, PrintWriter err, String... arguments) {
+        if (EXITING_PROGRAMS.contains(jar)) {
+          var command = List.of(java.toString(), "-jar", jar.toString());
+          return new ExecuteProgramToolProvider(name, command).run(out, err, arguments);
+        }
+        var idle = IDLE_WORKERS.computeIfAbsent(jar, __ -> new ConcurrentLinkedDeque<>());
+        var worker = idle.pollFirst();
+        try {
+          if (worker == null || !worker.process().isAlive()) worker = Worker.start(java, jar);
+          var code = worker.call(out, err, arguments);
+          if (!worker.process().isAlive()) EXITING_PROGRAMS.add(jar);
+          if (worker.process().isAlive() && idle.size() < MAX_IDLE_WORKERS) {
+            idle.addFirst(worker);
+            worker = null;
+          }
+          return code;
+        } catch (Exception exception) {
+          exception.printStackTrace(err);
+          return -1;
+        } finally {
+          if (worker != null) worker.process().destroy();
+        }
+      }
+
+      record Worker(
+          Process process,
+          PrintWriter input,
+          BufferedReader output,
+          Thread drainer,
+          AtomicReference<PrintWriter> errors) {
+
+        static Worker start(Path java, Path jar) throws Exception {
+          var command = new ArrayList<String>();
+          command.add(java.toString());
+          try (var file = new JarFile(jar.toFile())) {
+            var manifest = file.getManifest();
+            var attributes = manifest == null ? new Attributes() : manifest.getMainAttributes();
+            for (var option : List.of("Add-Exports", "Add-Opens")) {
+              var packages = attributes.getValue(option);
+              if (packages == null) continue;
+              for (var name : packages.trim().split("\\s+")) {
+                command.add("--" + option.toLowerCase(Locale.ROOT));
+                command.add(name + "=ALL-UNNAMED");
+              }
+            }
+          }
+          command.add("--class-path");
+          command.add(PathSupport.join(List.of(Classes.DIRECTORY, jar)));
+          command.add(Server.class.getName());
+          var process = new ProcessBuilder(command).start();
+          var errors = new AtomicReference<PrintWriter>();
+          var drainer =
+              new Thread(
+                  new StreamLineConsumer(
+                      process.getErrorStream(),
+                      line -> {
+                        var writer = errors.get();
+                        if (writer != null) writer.println(line);
+                        else System.err.println(line);
+                      }),
+                  "bach-worker-drainer");
+          drainer.setDaemon(true);
+          drainer.start();
+          var input = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+          var output = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8);
+          return new Worker(
+              process, new PrintWriter(input), new BufferedReader(output), drainer, errors);
+        }
+
+        int call(PrintWriter out, PrintWriter err, String... arguments) throws Exception {
+          errors.set(err);
+          try {
+            input.println(arguments.length);
+            for (var argument : arguments) {
+              input.println(URLEncoder.encode(argument, StandardCharsets.UTF_8));
+            }
+            input.flush();
+            if (input.checkError()) throw new IOException("Worker not accepting calls: " + process);
+            while (true) {
+              var line = output.readLine();
+              if (line == null) return crashed();
+              var text = line.substring(2);
+              switch (line.charAt(0)) {
+                case '0' -> {
+                  return Integer.parseInt(text);
+                }
+                case '1' -> out.println(text);
+                case '2' -> err.println(text);
+                default -> throw new IOException("Unexpected worker output: " + line);
+              }
+            }
+          } finally {
+            errors.set(null);
+          }
+        }
+
+        /** {@return the exit value of a worker that exited during a call} */
+        private int crashed() throws Exception {
+          if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            throw new IOException("Worker closed its output but didn't exit: " + process);
+          }
+          drainer.join(TimeUnit.SECONDS.toMillis(10));
+          return process.exitValue();
+        }
+      }
+
+      /**
+       * The main class of a worker process.
+       *
+       * <p>Workers run copies of the class files of this class and its nested classes, without
+       * any other class of Bach on their class path. These classes must only refer to each other
+       * and to classes of the Java platform, and must not access private members of each other.
+       */
+      static final class Server {
+        static final PrintStream PROTOCOL =
+            new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+
+        static final PrintStream ERROR =
+            new PrintStream(new FileOutputStream(FileDescriptor.err), true, StandardCharsets.UTF_8);
+
+        static Frame out;
+        static Frame err;
+
+        public static void main(String... args) throws Exception {
+          System.setOut(ERROR);
+          Runtime.getRuntime().addShutdownHook(new Thread(Server::flush));
+          var tool =
+              ServiceLoader.load(ToolProvider.class).stream()
+                  .filter(provider -> !provider.type().getModule().isNamed())
+                  .map(ServiceLoader.Provider::get)
+                  .findFirst()
+                  .orElseGet(MainClass::new);
+          var in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+          for (var count = in.readLine(); count != null; count = in.readLine()) {
+            var arguments = new String[Integer.parseInt(count)];
+            for (int i = 0; i < arguments.length; i++) {
+              arguments[i] = URLDecoder.decode(in.readLine(), StandardCharsets.UTF_8);
+            }
+            synchronized (Server.class) {
+              out = new Frame('1');
+              err = new Frame('2');
+            }
+            var code = run(tool, arguments);
+            flush();
+            PROTOCOL.println("0 " + code);
+          }
+          Runtime.getRuntime().halt(0);
+        }
+
+        /** Sends pending output of the current call, also when the tool exits the VM. */
+        static synchronized void flush() {
+          if (out != null) out.close();
+          if (err != null) err.close();
+          out = null;
+          err = null;
+        }
+
+        static int run(ToolProvider tool, String... arguments) {
+          var o = new PrintStream(out, true, StandardCharsets.UTF_8);
+          var e = new PrintStream(err, true, StandardCharsets.UTF_8);
+          System.setOut(o);
+          System.setErr(e);
+          try {
+            return tool.run(o, e, arguments);
+          } catch (RuntimeException exception) {
+            exception.printStackTrace(e);
+            return 1;
+          } finally {
+            o.flush();
+            e.flush();
+            System.setOut(ERROR);
+            System.setErr(ERROR);
+          }
+        }
+
+        /** Sends the lines written to a standard stream, prefixed by the channel. */
+        static final class Frame extends OutputStream {
+          final char channel;
+          final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+          Frame(char channel) {
+            this.channel = channel;
+          }
+
+          @Override
+          public synchronized void write(int b) {
+            if (b == '\n') send();
+            else line.write(b);
+          }
+
+          @Override
+          public synchronized void close() {
+            if (line.size() > 0) send();
+          }
+
+          void send() {
+            PROTOCOL.println(channel + " " + line.toString(StandardCharsets.UTF_8));
+            line.reset();
+          }
+        }
+
+        /** Runs the main method of the {@code Main-Class} of the jar file on the class path. */
+        static final class MainClass implements ToolProvider {
+          final Method main;
+
+          MainClass() {
+            var jar = System.getProperty("java.class.path").split(File.pathSeparator)[1];
+            try (var file = new JarFile(jar)) {
+              var name = file.getManifest().getMainAttributes().getValue("Main-Class");
+              main = Class.forName(name).getMethod("main", String[].class);
+            } catch (Exception exception) {
+              throw new IllegalStateException("No main method found in " + jar, exception);
+            }
+          }
+
+          @Override
+          public String name() {
+            return main.getDeclaringClass().getName();
+          }
+
+          @Override
+          public int run(PrintWriter out, PrintWriter err, String... arguments) {
+            try {
+              main.invoke(null, (Object) arguments);
+              return 0;
+            } catch (InvocationTargetException exception) {
+              exception.getCause().printStackTrace(err);
+              return 1;
+            } catch (ReflectiveOperationException exception) {
+              exception.printStackTrace(err);
+              return 1;
+            }
+          }
+        }
+      }
+
+      /**
+       * Holds the directory of the worker classes, shared by all workers of a user.
+       *
+       * <p>The class files of {@link Server} and its nested classes are copied into a subdirectory
+       * of {@code ~/.bach/worker} accessible only by its owner. A checksum of all class files is
+       * stored next to them and verified before copied classes are reused; any mismatch leads to
+       * a new copy.
+       */
+      private static final class Classes {
+        private static final Path DIRECTORY = copy();
+
+        private static Path copy() {
+          try {
+            var files = new TreeMap<String, byte[]>();
+            var pending = new ArrayDeque<Class<?>>(List.of(Server.class));
+            while (!pending.isEmpty()) {
+              var type = pending.removeFirst();
+              var name = type.getName() + ".class";
+              try (var stream = type.getResourceAsStream('/' + name)) {
+                if (stream == null) throw new IllegalStateException("Not found: " + name);
+                files.put(name, stream.readAllBytes());
+              }
+              pending.addAll(List.of(type.getDeclaredClasses()));
+            }
+            var hex = HexFormat.of();
+            var checksum =
+                StringSupport.checksum(
+                    files.entrySet().stream()
+                        .map(file -> file.getKey() + " " + hex.formatHex(file.getValue())));
+            var home = Path.of(System.getProperty("user.home"), ".bach", "worker");
+            var directory = home.resolve(checksum.substring(0, 16));
+            var classes = directory.resolve("classes");
+            if (isVerified(directory)) return classes;
+            createPrivateDirectory(home);
+            var temporary = Files.createTempDirectory(home, "tmp-");
+            createPrivateDirectory(temporary);
+            var target = Files.createDirectories(temporary.resolve("classes"));
+            for (var file : files.entrySet()) {
+              Files.write(target.resolve(file.getKey()), file.getValue());
+            }
+            Files.writeString(temporary.resolve("classes.sha256"), checksum(target));
+            if (Files.exists(directory) && !isVerified(directory)) PathSupport.delete(directory);
+            try {
+              PathSupport.move(temporary, directory);
+            } catch (Exception exception) {
+              if (!isVerified(directory)) throw exception;
+              PathSupport.delete(temporary);
+            }
+            if (!isVerified(directory)) throw new IllegalStateException("Unverified " + classes);
+            return classes;
+          } catch (Exception exception) {
+            throw new RuntimeException(exception);
+          }
+        }
+
+        /** {@return {@code true} if the directory is private and holds the recorded classes} */
+        private static boolean isVerified(Path directory) throws IOException {
+          var classes = directory.resolve("classes");
+          var sha256 = directory.resolve("classes.sha256");
+          if (!Files.isDirectory(classes) || !Files.isRegularFile(sha256)) return false;
+          if (!isPrivate(directory)) return false;
+          return Files.readString(sha256).equals(checksum(classes));
+        }
+
+        private static boolean isPrivate(Path directory) throws IOException {
+          var user = System.getProperty("user.name");
+          var lookup = directory.getFileSystem().getUserPrincipalLookupService();
+          if (!Files.getOwner(directory).equals(lookup.lookupPrincipalByName(user))) return false;
+          var view = Files.getFileAttributeView(directory, PosixFileAttributeView.class);
+          if (view == null) return true;
+          var permissions = view.readAttributes().permissions();
+          return permissions.equals(PosixFilePermissions.fromString("rwx------"));
+        }
+
+        private static void createPrivateDirectory(Path directory) throws IOException {
+          Files.createDirectories(directory);
+          var view = Files.getFileAttributeView(directory, PosixFileAttributeView.class);
+          if (view != null) view.setPermissions(PosixFilePermissions.fromString("rwx------"));
+        }
+
+        private static String checksum(Path classes) throws IOException {
+          try (var stream = Files.walk(classes)) {
+            var files = stream.filter(Files::isRegularFile).sorted().toList();
+            return StringSupport.checksum(
+                files.stream()
+                    .map(file -> classes.relativize(file) + " " + computeChecksum(file)));
+          }
+        }
+
+        private static String computeChecksum(Path file) {
+          return PathSupport.computeChecksum(file, "SHA-256");
+        }
+      }
+    }
+  }
+
+  /**
+   * A content-addressed store of the files written by tool calls.
+   *
+   * <p>A call is identified by a key computed from the tool name, its arguments, the runtime
+   * version, and the checksums of all files referenced by its arguments. The files a successful
+   * call wrote to its output locations are copied to an {@code objects} directory named by their
+   * checksums, and an {@code actions} entry maps the key to these objects. A later call with the
+   * same key restores the files instead of running the tool again, if all objects still match
+   * their checksums. A call that didn't write any file is not cached.
+   *
+   * @param directory the directory to store actions and objects in
+   * @param checksums the cache of checksums of input files
+   */
+  record ToolCallCache(Path directory, ChecksumCache checksums) {
+
+    static ToolCallCache ofUserHome(ChecksumCache checksums) {
+      var directory = Path.of(System.getProperty("user.home"), ".bach", "cache");
+      return new ToolCallCache(directory, checksums);
+    }
+
+    /** {@return the output locations of the given call, or an empty list if not supported} */
+    static List<Path> outputs(ToolCall call) {
+      var arguments = call.arguments();
+      var outputs = new ArrayList<Path>();
+      for (int i = 0; i < arguments.size(); i++) {
+        var argument = arguments.get(i);
+        var last = i == arguments.size() - 1;
+        switch (call.name()) {
+          case "javac" -> {
+            if (Set.of("-d", "-s", "-h").contains(argument) && !last) {
+              outputs.add(Path.of(arguments.get(++i)));
+            }
+          }
+          case "jar" -> {
+            if (argument.startsWith("--file=")) outputs.add(Path.of(argument.substring(7)));
+            if (Set.of("--file", "-f").contains(argument) && !last) {
+              outputs.add(Path.of(arguments.get(++i)));
+            }
+          }
+          default -> {
+            return List.of();
+          }
+        }
+      }
+      return List.copyOf(outputs);
+    }
+
+    /** {@return the cache key of the given call, or an empty optional if not cacheable} */
+    Optional<String> key(ToolCall call) {
+      var outputs = outputs(call);
+      if (outputs.isEmpty()) return Optional.empty();
+      var lines = new ArrayList<String>();
+      lines.add(call.name());
+      lines.add(Runtime.version().toString());
+      lines.addAll(call.arguments());
+      var inputs = new TreeSet<Path>(Comparator.comparing(Path::toString));
+      var arguments = call.arguments();
+      for (int i = 0; i < arguments.size(); i++) {
+        var argument = arguments.get(i);
+        if (argument.startsWith("@")) return Optional.empty(); // argument files aren't supported
+        if (argument.equals("-C") && i + 2 < arguments.size()) {
+          inputs.add(Path.of(arguments.get(++i)).resolve(arguments.get(++i)));
+          continue;
+        }
+        var value = argument.substring(argument.startsWith("-") ? argument.indexOf('=') + 1 : 0);
+        for (var element : value.split(System.getProperty("path.separator"))) {
+          if (element.isBlank() || element.startsWith("-")) continue;
+          try {
+            inputs.add(Path.of(element));
+          } catch (InvalidPathException ignore) {
+            // not a path
+          }
+        }
+      }
+      for (var input : inputs) {
+        for (var file : files(input)) {
+          if (outputs.stream().anyMatch(file.normalize()::startsWith)) continue;
+          lines.add(checksums.computeChecksum(file, "SHA-256") + ' ' + file);
+        }
+      }
+      return Optional.of(StringSupport.checksum(lines.stream()));
+    }
+
+    /** {@return {@code true} if all files stored for the given key were restored} */
+    boolean restore(String key) {
+      var action = directory.resolve("actions").resolve(key + ".properties");
+      if (!Files.isRegularFile(action)) return false;
+      var properties = PathSupport.properties(action);
+      var names = properties.stringPropertyNames();
+      if (names.isEmpty()) return false;
+      for (var name : names) {
+        var checksum = properties.getProperty(name);
+        var object = directory.resolve("objects").resolve(checksum);
+        if (!Files.isRegularFile(object)) return false;
+        if (!checksum.equals(PathSupport.computeChecksum(object, "SHA-256"))) {
+          PathSupport.delete(object); // corrupt, stored again by the next run
+          return false;
+        }
+      }
+      try {
+        for (var name : names) {
+          var object = directory.resolve("objects").resolve(properties.getProperty(name));
+          var target = Path.of(name);
+          var parent = target.getParent();
+          if (parent != null) Files.createDirectories(parent);
+          Files.copy(object, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } catch (Exception exception) {
+        throw new RuntimeException("Restore from cache failed: " + key, exception);
+      }
+      return true;
+    }
+
+    /** Stores all files written to the outputs of the given call since the given instant. */
+    void store(String key, ToolCall call, Instant since) {
+      var threshold = FileTime.from(since.truncatedTo(ChronoUnit.SECONDS));
+      var properties = new Properties();
+      try {
+        var objects = Files.createDirectories(directory.resolve("objects"));
+        for (var output : outputs(call)) {
+          for (var file : files(output)) {
+            if (Files.getLastModifiedTime(file).compareTo(threshold) < 0) continue;
+            var checksum = PathSupport.computeChecksum(file, "SHA-256");
+            var object = objects.resolve(checksum);
+            if (Files.notExists(object)) {
+              var temporary = Files.createTempFile(objects, checksum, ".tmp");
+              Files.copy(file, temporary, StandardCopyOption.REPLACE_EXISTING);
+              PathSupport.move(temporary, object);
+            }
+            properties.setProperty(PathSupport.normalized(file), checksum);
+          }
+        }
+        if (properties.isEmpty()) return;
+        var actions = Files.createDirectories(directory.resolve("actions"));
+        var temporary = Files.createTempFile(actions, key, ".tmp");
+        PathSupport.store(properties, temporary);
+        PathSupport.move(temporary, actions.resolve(key + ".properties"));
+      } catch (Exception exception) {
+        throw new RuntimeException("Store in cache failed: " + key, exception);
+      }
+    }
+
+    private static List<Path> files(Path path) {
+      if (Files.isRegularFile(path)) return List.of(path);
+      if (!Files.isDirectory(path)) return List.of();
+      try (var stream = Files.find(path, Integer.MAX_VALUE, (p, a) -> a.isRegularFile())) {
+        return stream.sorted(Comparator.comparing(Path::toString)).toList();
+      } catch (Exception exception) {
+        throw new RuntimeException("Find files failed in: " + path, exception);
+      }
+    }
+  }
+
+  record StreamLineConsumer(InputStream stream, Consumer<String> consumer) implements Runnable {
+    public void run() {
+      new BufferedReader(new InputStreamReader(stream)).lines().forEach(consumer);
+    }
+  }
+
+  /**
+   * A writer that forwards each complete line to a consumer.
+   *
+   * <p>Characters are collected until a line terminator is written, at which point the collected
+   * line is passed to the consumer. A pending incomplete line is forwarded when this writer is
+   * closed. Only the most recent lines, up to the given limit of characters, are retained and
+   * returned by {@link #toString()}.
+   */
+  static final class LineForwardingWriter extends Writer {
+
+    private final Consumer<String> consumer;
+    private final int limit;
+    private final StringBuilder line = new StringBuilder();
+    private final Deque<String> retained = new ArrayDeque<>();
+    private int retainedLength = 0;
+    private boolean truncated = false;
+
+    LineForwardingWriter(Consumer<String> consumer, int limit) {
+      this.consumer = consumer;
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+      synchronized (lock) {
+        for (int i = offset; i < offset + length; i++) {
+          var c = chars[i];
+          if (c != '\n') {
+            line.append(c);
+            continue;
+          }
+          var end = line.length();
+          if (end > 0 && line.charAt(end - 1) == '\r') line.setLength(end - 1);
+          forward();
+        }
+      }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {
+      synchronized (lock) {
+        if (!line.isEmpty()) forward();
+      }
+    }
+
+    private void forward() {
+      var string = line.toString();
+      line.setLength(0);
+      consumer.accept(string);
+      retained.addLast(string);
+      retainedLength += string.length() + 1;
+      while (retainedLength > limit && !retained.isEmpty()) {
+        retainedLength -= retained.removeFirst().length() + 1;
+        truncated = true;
+      }
+    }
+
+    @Override
+    public String toString() {
+      synchronized (lock) {
+        var string = String.join("\n", retained);
+        return truncated ? "[...]\n" + string : string;
+      }
+    }
+  }
+
+  /**
+   * A persistent cache of file checksums.
+   *
+   * <p>An entry is keyed by the absolute path of a file and the name of an algorithm. It is valid
+   * as long as the size and the last-modified time of the file don't change. New entries are
+   * appended to a journal file, which is compacted when loaded.
+   */
+  static final class ChecksumCache {
+
+    private static final Map<Path, ChecksumCache> CACHES = new ConcurrentHashMap<>();
+
+    static ChecksumCache of(Path file) {
+      return CACHES.computeIfAbsent(file.toAbsolutePath().normalize(), ChecksumCache::new);
+    }
+
+    private record Entry(long size, String time, String checksum) {}
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private ChecksumCache(Path file) {
+      this.file = file;
+      load();
+    }
+
+    String computeChecksum(Path path, String algorithm) {
+      if ("size".equalsIgnoreCase(algorithm) || !Files.isRegularFile(path)) {
+        return PathSupport.computeChecksum(path, algorithm);
+      }
+      try {
+        var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        var size = attributes.size();
+        var time = attributes.lastModifiedTime().toString();
+        var key = algorithm.toUpperCase() + ' ' + path.toAbsolutePath().normalize();
+        var entry = entries.get(key);
+        if (entry != null && entry.size() == size && entry.time().equals(time)) {
+          return entry.checksum();
+        }
+        var checksum = PathSupport.computeChecksum(path, algorithm);
+        entry = new Entry(size, time, checksum);
+        entries.put(key, entry);
+        append(line(key, entry));
+        return checksum;
+      } catch (RuntimeException exception) {
+        throw exception;
+      } catch (Exception exception) {
+        throw new RuntimeException(exception);
+      }
+    }
+
+    private static String line(String key, Entry entry) {
+      return entry.size() + " " + entry.time() + ' ' + entry.checksum() + ' ' + key;
+    }
+
+    private void load() {
+      if (!Files.isRegularFile(file)) return;
+      List<String> lines;
+      try {
+        lines = Files.readAllLines(file);
+      } catch (Exception exception) {
+        return; // start over with an empty cache
+      }
+      for (var line : lines) {
+        var split = line.split(" ", 4);
+        if (split.length != 4) continue;
+        try {
+          entries.put(split[3], new Entry(Long.parseLong(split[0]), split[1], split[2]));
+        } catch (NumberFormatException exception) {
+          // skip a corrupt line, it is dropped by the next compaction
+        }
+      }
+      if (lines.size() > 2 * entries.size() + 16) compact();
+    }
+
+    private synchronized void append(String line) throws Exception {
+      Files.createDirectories(file.getParent());
+      var options = new OpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.APPEND};
+      Files.writeString(file, line + '\n', options);
+    }
+
+    /** Rewrites the file with the current entries, keeping the appended file if that fails. */
+    private synchronized void compact() {
+      var lines = entries.entrySet().stream().map(e -> line(e.getKey(), e.getValue())).toList();
+      Path temporary = null;
+      try {
+        temporary = Files.createTempFile(file.getParent(), "checksums", ".tmp");
+        Files.write(temporary, lines);
+        PathSupport.move(temporary, file);
+      } catch (Exception exception) {
+        try {
+          if (temporary != null) Files.deleteIfExists(temporary);
+        } catch (IOException ignore) {
+          // a stale temporary file doesn't affect the cache
+        }
+      }
+    }
+  }
+
+  static final class PathSupport {
+
+    private static final int CHECKSUM_BUFFER_SIZE = 1 << 20;
+    private static final long CHECKSUM_MAPPED_SIZE = 1 << 24;
+
+    /**
+     * {@return the checksum of the given file}
+     *
+     * <p>Files of up to 16 MB are read into a heap buffer, which lets the message digest consume
+     * the bytes from its backing array. Larger files are mapped into memory in 16 MB regions.
+     */
+    static String computeChecksum(Path path, String algorithm) {
+      if (Files.notExists(path)) throw new RuntimeException("File not found: " + path);
+      try {
+        if ("size".equalsIgnoreCase(algorithm)) return Long.toString(Files.size(path));
+        var md = MessageDigest.getInstance(algorithm);
+        try (var channel = FileChannel.open(path)) {
+          var size = channel.size();
+          if (size > CHECKSUM_MAPPED_SIZE) {
+            for (long position = 0; position < size; position += CHECKSUM_MAPPED_SIZE) {
+              var length = Math.min(CHECKSUM_MAPPED_SIZE, size - position);
+              md.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+            }
+          } else {
+            var buffer = ByteBuffer.allocate((int) Math.min(size + 1, CHECKSUM_BUFFER_SIZE));
+            while (channel.read(buffer) != -1) {
+              md.update(buffer.flip());
+              buffer.clear();
+            }
+          }
+        }
+        return HexFormat.of().formatHex(md.digest());
+      } catch (Exception exception) {
+        throw new RuntimeException(exception);
+      }
+    }
+
+    static void delete(Path path) {
+      if (Files.notExists(path)) return;
+      try (var stream = Files.walk(path)) {
+        var paths = stream.sorted(Comparator.reverseOrder()).toList();
+        for (var each : paths) Files.delete(each);
+      } catch (Exception exception) {
+        throw new RuntimeException("Delete failed: " + path, exception);
+      }
+    }
+
+    /** {@return the given file, all regular files below a directory, or all files of a glob} */
+    static List<Path> expand(String string) {
+      if (string.chars().anyMatch(c -> "*?[{".indexOf(c) >= 0)) return find(Path.of(""), string);
+      var path = Path.of(string);
+      if (!Files.isDirectory(path)) return List.of(path);
+      try (var stream = Files.find(path, Integer.MAX_VALUE, (p, a) -> a.isRegularFile())) {
+        return stream.sorted(Comparator.comparing(Path::toString)).toList();
+      } catch (Exception exception) {
+        throw new RuntimeException("Find files failed in: " + path, exception);
+      }
+    }
+
+    static List<Path> find(Path start, String glob) {
+      var matcher = start.getFileSystem().getPathMatcher("glob:" + glob);
+      try (var files = Files.find(start, Integer.MAX_VALUE, (p, a) -> matcher.matches(p))) {
+        return files.sorted(Comparator.comparing(Path::toString)).toList();
+      } catch (Exception exception) {
+        throw new RuntimeException("Find files failed in: " + start, exception);
+      }
+    }
+
+    static Properties properties(Path path) {
+      var properties = new Properties();
+      if (Files.exists(path)) {
+        try {
+          properties.load(new FileInputStream(path.toFile()));
+        } catch (Exception exception) {
+          throw new RuntimeException(exception);
+        }
+      }
+      return properties;
+    }
+
+    static void move(Path source, Path target) throws Exception {
+      try {
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException exception) {
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    static void store(Properties properties, Path path) {
+      try {
+        var parent = path.getParent();
+        if (parent != null) Files.createDirectories(parent);
+        try (var writer = Files.newBufferedWriter(path)) {
+          properties.store(writer, null);
+        }
+      } catch (Exception exception) {
+        throw new RuntimeException(exception);
+      }
+    }
+
+    static boolean isJarFile(Path path) {
+      return nameOrElse(path, "").endsWith(".jar") && Files.isRegularFile(path);
+    }
+
+    static boolean isJavaFile(Path path) {
+      return nameOrElse(path, "").endsWith(".java") && Files.isRegularFile(path);
+    }
+
+    static boolean isModuleInfoJavaFile(Path path) {
+      return "module-info.java".equals(name(path)) && Files.isRegularFile(path);
+    }
+
+    static String join(List<Path> paths) {
+      var strings = paths.stream().map(PathSupport::normalized).toList();
+      return String.join(System.getProperty("path.separator"), strings);
+    }
+
+    static List<Path> list(Path directory, DirectoryStream.Filter<? super Path> filter) {
+      if (Files.notExists(directory)) return List.of();
+      var paths = new TreeSet<>(Comparator.comparing(Path::toString));
+      try (var stream = Files.newDirectoryStream(directory, filter)) {
+        stream.forEach(paths::add);
+      } catch (Exception exception) {
+        throw new RuntimeException(exception);
+      }
+      return List.copyOf(paths);
+    }
+
+    static String name(Path path) {
+      return nameOrElse(path, null);
+    }
+
+    static String nameOrElse(Path path, String defautName) {
+      var normalized = path.normalize();
+      var candidate = normalized.toString().isEmpty() ? normalized.toAbsolutePath() : normalized;
+      var name = candidate.getFileName();
+      return name != null ? name.toString() : defautName;
+    }
+
+    static String normalized(Path path) {
+      var string = path.normalize().toString();
+      return string.isEmpty() ? "." : string;
+    }
+  }
+
+  static final class ModuleSupport {
+
+    private static final Pattern COMMENTS = Pattern.compile("(?s)/\\*.*?\\*/|//[^\\n]*");
+    private static final Pattern MODULE = Pattern.compile("\\bmodule\\s+([\\w.]+)\\s*\\{");
+    private static final Pattern ANONYMOUS = Pattern.compile("\\$\\d");
+    private static final Pattern REQUIRES =
+        Pattern.compile("\\brequires\\s+(?:(?:transitive|static)\\s+)*([\\w.]+)\\s*;");
+
+    record SourceModule(String name, Path info, Set<String> requires) {
+      Path root() {
+        var parent = info.getParent();
+        return parent == null ? Path.of("") : parent;
+      }
+
+      /** {@return {@code true} if a directory below the given root is named {@code test}} */
+      boolean isTestModule(Path root) {
+        var path = info.toAbsolutePath().normalize();
+        var base = root.toAbsolutePath().normalize();
+        if (path.startsWith(base)) path = base.relativize(path);
+        for (var element : path) if (element.toString().equals("test")) return true;
+        return false;
+      }
+    }
+
+    static List<SourceModule> findSourceModules(Path root, Path skip) {
+      var modules = new ArrayList<SourceModule>();
+      try {
+        Files.walkFileTree(
+            root,
+            new SimpleFileVisitor<>() {
+              @Override
+              public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes __) {
+                if (directory.equals(root)) return FileVisitResult.CONTINUE;
+                if (directory.equals(skip)) return FileVisitResult.SKIP_SUBTREE;
+                var name = PathSupport.nameOrElse(directory, "");
+                if (name.startsWith(".")) return FileVisitResult.SKIP_SUBTREE;
+                return FileVisitResult.CONTINUE;
+              }
+
+              @Override
+              public FileVisitResult visitFile(Path file, BasicFileAttributes __) {
+                if (PathSupport.isModuleInfoJavaFile(file)) modules.add(parse(file));
+                return FileVisitResult.CONTINUE;
+              }
+            });
+      } catch (Exception exception) {
+        throw new RuntimeException("Find modules failed in: " + root, exception);
+      }
+      return List.copyOf(modules);
+    }
+
+    static SourceModule parse(Path info) {
+      String source;
+      try {
+        source = COMMENTS.matcher(Files.readString(info)).replaceAll(" ");
+      } catch (Exception exception) {
+        throw new RuntimeException(exception);
+      }
+      var module = MODULE.matcher(source);
+      if (!module.find()) throw new IllegalArgumentException("No module declared in: " + info);
+      var requires = new TreeSet<String>();
+      var matcher = REQUIRES.matcher(source);
+      while (matcher.find()) requires.add(matcher.group(1));
+      return new SourceModule(module.group(1), info, Collections.unmodifiableSet(requires));
+    }
+
+    /** {@return the names of all modules in the graph the module requires, directly or not} */
+    static Set<String> closure(SourceModule module, Map<String, Set<String>> graph) {
+      var names = new TreeSet<String>();
+      var pending = new ArrayDeque<>(module.requires());
+      while (!pending.isEmpty()) {
+        var name = pending.removeFirst();
+        var requires = graph.get(name);
+        if (requires == null || !names.add(name)) continue;
+        pending.addAll(requires);
+      }
+      return names;
+    }
+
+    /**
+     * {@return the exploded modules found on the given module path}
+     *
+     * <p>An element of the module path is an exploded module if it contains a {@code
+     * module-info.class} file; otherwise its direct subdirectories containing one are. Modular
+     * jar files are not included.
+     */
+    static List<Path> findExplodedModules(List<Path> modulePath) {
+      var modules = new ArrayList<Path>();
+      for (var element : modulePath) {
+        if (!Files.isDirectory(element)) continue;
+        if (Files.isRegularFile(element.resolve("module-info.class"))) {
+          modules.add(element);
+          continue;
+        }
+        var directories = PathSupport.list(element, Files::isDirectory);
+        for (var directory : directories) {
+          if (Files.isRegularFile(directory.resolve("module-info.class"))) modules.add(directory);
+        }
+      }
+      return List.copyOf(modules);
+    }
+
+    /**
+     * {@return a checksum of the public API described by all class files in the given directory}
+     *
+     * <p>The checksum covers the module descriptor as a whole and, for each named class, its
+     * access flags, super types, and generic signature, as well as all non-private and
+     * non-synthetic fields and methods with their descriptors, signatures, thrown exceptions, and
+     * constant values. Method bodies, private members, and anonymous classes are ignored.
+     */
+    static String computeApiChecksum(Path directory) {
+      try (var stream = Files.find(directory, Integer.MAX_VALUE, (p, a) -> a.isRegularFile())) {
+        var files =
+            stream
+                .filter(file -> file.toString().endsWith(".class"))
+                .filter(file -> !ANONYMOUS.matcher(PathSupport.name(file)).find())
+                .sorted(Comparator.comparing(Path::toString))
+                .toList();
+        var lines = new ArrayList<String>();
+        for (var file : files) {
+          var bytes = Files.readAllBytes(file);
+          lines.add(directory.relativize(file).toString());
+          if (PathSupport.name(file).equals("module-info.class")) {
+            lines.add(HexFormat.of().formatHex(bytes));
+            continue;
+          }
+          lines.addAll(describeApi(ByteBuffer.wrap(bytes)));
+        }
+        return StringSupport.checksum(lines.stream());
+      } catch (Exception exception) {
+        throw new RuntimeException("Compute API checksum failed in: " + directory, exception);
+      }
+    }
+
+    private static Set<String> describeApi(ByteBuffer in) {
+      record Index(int value) {}
+      IntSupplier u2 = () -> Short.toUnsignedInt(in.getShort());
+      in.position(8); // skip magic, minor and major version
+      var pool = new Object[u2.getAsInt()];
+      for (int i = 1; i < pool.length; i++) {
+        var tag = in.get();
+        switch (tag) {
+          case 1 -> {
+            var utf = new byte[u2.getAsInt()];
+            in.get(utf);
+            pool[i] = new String(utf, StandardCharsets.UTF_8);
+          }
+          case 3 -> pool[i] = in.getInt();
+          case 4 -> pool[i] = in.getFloat();
+          case 5 -> pool[i++] = in.getLong();
+          case 6 -> pool[i++] = in.getDouble();
+          case 7, 8, 16, 19, 20 -> pool[i] = new Index(u2.getAsInt());
+          case 15 -> in.position(in.position() + 3);
+          case 9, 10, 11, 12, 17, 18 -> in.position(in.position() + 4);
+          default -> throw new IllegalArgumentException("Unknown constant pool tag: " + tag);
+        }
+      }
+      Supplier<String> constant =
+          () -> {
+            var entry = pool[u2.getAsInt()];
+            return String.valueOf(entry instanceof Index index ? pool[index.value()] : entry);
+          };
+      var type = new StringJoiner(" ");
+      type.add(Integer.toString(u2.getAsInt())); // access flags
+      type.add(constant.get()); // this class
+      type.add(constant.get()); // super class, "null" for java.lang.Object
+      var interfaces = u2.getAsInt();
+      for (int i = 0; i < interfaces; i++) type.add(constant.get());
+      var api = new TreeSet<String>();
+      for (int kind = 0; kind < 3; kind++) { // fields, methods, and the class attributes
+        var count = kind == 2 ? 1 : u2.getAsInt();
+        for (int m = 0; m < count; m++) {
+          var member = kind == 2 ? type : new StringJoiner(" ");
+          var access = kind == 2 ? 0 : u2.getAsInt();
+          if (kind < 2) {
+            member.add(Integer.toString(access));
+            member.add(constant.get()); // name
+            member.add(constant.get()); // descriptor
+          }
+          var attributes = u2.getAsInt();
+          for (int a = 0; a < attributes; a++) {
+            var name = constant.get();
+            var end = in.getInt() + in.position();
+            switch (name) {
+              case "ConstantValue", "Signature" -> member.add(name + '=' + constant.get());
+              case "Exceptions" -> {
+                var exceptions = u2.getAsInt();
+                for (int e = 0; e < exceptions; e++) member.add("throws " + constant.get());
+              }
+              default -> {}
+            }
+            in.position(end);
+          }
+          var hidden = (access & 0x0002) != 0 || (access & 0x1000) != 0; // private or synthetic
+          if (!hidden) api.add(member.toString());
+        }
+      }
+      return api;
+    }
+
+    /**
+     * {@return the given modules grouped into topologically sorted layers}
+     *
+     * <p>Each module of a layer only requires modules of previous layers. Required modules that
+     * are not part of the given modules, like {@code java.base}, are ignored.
+     */
+    static List<List<SourceModule>> layers(List<SourceModule> modules) {
+      var remaining = new TreeMap<String, SourceModule>();
+      for (var module : modules) {
+        var name = module.name();
+        var info = module.info();
+        var other = remaining.put(name, module);
+        if (other == null) continue;
+        var message = "Module %s declared twice: %s and %s".formatted(name, other.info(), info);
+        throw new IllegalArgumentException(message);
+      }
+      var names = Set.copyOf(remaining.keySet());
+      var done = new HashSet<String>();
+      var layers = new ArrayList<List<SourceModule>>();
+      while (!remaining.isEmpty()) {
+        var layer =
+            remaining.values().stream()
+                .filter(
+                    module ->
+                        module.requires().stream()
+                            .allMatch(name -> done.contains(name) || !names.contains(name)))
+                .toList();
+        if (layer.isEmpty()) {
+          throw new IllegalArgumentException("Cyclic module graph: " + remaining.keySet());
+        }
+        for (var module : layer) {
+          remaining.remove(module.name());
+          done.add(module.name());
+        }
+        layers.add(layer);
+      }
+      return List.copyOf(layers);
+    }
+  }
+
+  /**
+   * Transfers resources denoted by URIs to local files.
+   *
+   * <p>HTTP resources are requested via a shared {@link HttpClient} that prefers HTTP/2 and reuses
+   * connections. Bytes are written to a {@code .part} file next to the target file, which is moved
+   * into place atomically when complete. A failed transfer is retried and resumes at the end of the
+   * partial file via an HTTP range request, but only if a message digest guards the result and the
+   * target is not replaced; otherwise a stale partial file is deleted and the transfer restarts.
+   *
+   * <p>Expected checksums are verified while the bytes are written: each requested message digest
+   * is updated by the copy stream, so the file is read only once. The file is moved into place
+   * only if its size and all digests match.
+   */
+  static final class DownloadSupport {
+
+    private static final int ATTEMPTS = 3;
+
+    private static final class Client {
+      private static final HttpClient INSTANCE =
+          HttpClient.newBuilder()
+              .version(HttpClient.Version.HTTP_2)
+              .followRedirects(HttpClient.Redirect.NORMAL)
+              .connectTimeout(Duration.ofSeconds(10))
+              .build();
+    }
+
+    static long download(
+        URI from, Path to, Map<String, String> checksums, CopyOption... options) {
+      var part = to.resolveSibling(PathSupport.name(to) + ".part");
+      var replace = Set.of(options).contains(StandardCopyOption.REPLACE_EXISTING);
+      try {
+        var parent = to.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        var digests = new TreeMap<String, MessageDigest>();
+        for (var algorithm : checksums.keySet()) {
+          if (algorithm.equalsIgnoreCase("size")) continue;
+          digests.put(algorithm, MessageDigest.getInstance(algorithm));
+        }
+        var resumable = !replace && !digests.isEmpty();
+        if (!resumable) Files.deleteIfExists(part);
+        for (int attempt = 1; ; attempt++) {
+          try {
+            transfer(from, part, resumable, digests.values());
+            break;
+          } catch (IOException exception) {
+            if (attempt == ATTEMPTS) throw exception;
+            Thread.sleep(attempt * 1000L);
+          }
+        }
+        var size = Files.size(part);
+        for (var entry : checksums.entrySet()) {
+          var algorithm = entry.getKey();
+          var expected = entry.getValue();
+          var digest = digests.get(algorithm);
+          var computed =
+              digest == null ? Long.toString(size) : HexFormat.of().formatHex(digest.digest());
+          if (computed.equalsIgnoreCase(expected)) continue;
+          Files.deleteIfExists(part);
+          throw checksumMismatch(to, algorithm, computed, expected);
+        }
+        if (replace) PathSupport.move(part, to);
+        else Files.move(part, to);
+        return size;
+      } catch (RuntimeException exception) {
+        throw exception;
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Download interrupted: " + from, exception);
+      } catch (Exception exception) {
+        throw new RuntimeException("Download failed: " + from, exception);
+      }
+    }
+
+    private static void transfer(
+        URI from, Path part, boolean resumable, Collection<MessageDigest> digests)
+        throws Exception {
+      digests.forEach(MessageDigest::reset);
+      var scheme = String.valueOf(from.getScheme()).toLowerCase();
+      if (!scheme.equals("http") && !scheme.equals("https")) {
+        try (var stream = from.toURL().openStream();
+            var target = digesting(Files.newOutputStream(part), digests)) {
+          stream.transferTo(target);
+        }
+        return;
+      }
+      var offset = resumable && Files.isRegularFile(part) ? Files.size(part) : 0;
+      var uri = new URI(from.getScheme(), from.getSchemeSpecificPart(), null);
+      var request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30));
+      if (offset > 0) request.header("Range", "bytes=" + offset + "-");
+      var handler = HttpResponse.BodyHandlers.ofInputStream();
+      var response = Client.INSTANCE.send(request.build(), handler);
+      try (var body = response.body()) {
+        var status = response.statusCode();
+        var range = response.headers().firstValue("Content-Range").orElse("");
+        var resume = status == 206 && range.startsWith("bytes " + offset + "-");
+        if ((status == 206 && !resume) || status == 416) {
+          Files.deleteIfExists(part);
+          throw new IOException("Unexpected range %s for %s, restarting".formatted(range, uri));
+        }
+        if (status >= 500) throw new IOException("HTTP status %d for %s".formatted(status, uri));
+        if (status != 200 && !resume) {
+          throw new IllegalStateException("HTTP status %d for %s".formatted(status, uri));
+        }
+        if (resume) {
+          try (var source = Files.newInputStream(part)) {
+            source.transferTo(digesting(OutputStream.nullOutputStream(), digests));
+          }
+        }
+        var mode = resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        var options = Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+        try (var channel = FileChannel.open(part, options);
+            var target = digesting(Channels.newOutputStream(channel), digests)) {
+          body.transferTo(target);
+        }
+      }
+    }
+
+    private static OutputStream digesting(OutputStream stream, Collection<MessageDigest> digests) {
+      for (var digest : digests) stream = new DigestOutputStream(stream, digest);
+      return stream;
+    }
+  }
+
+  static final class StringSupport {
+    record Property(String key, String value) {}
+
+    static String checksum(Stream<String> lines) {
+      try {
+        var md = MessageDigest.getInstance("SHA-256");
+        lines.forEach(line -> md.update((line + '\n').getBytes(StandardCharsets.UTF_8)));
+        return HexFormat.of().formatHex(md.digest());
+      } catch (Exception exception) {
+        throw new RuntimeException(exception);
+      }
+    }
+
+    static Property parseProperty(String string) {
+      return StringSupport.parseProperty(string, '=');
+    }
+
+    static Property parseProperty(String string, char separator) {
+      int index = string.indexOf(separator);
+      if (index < 0) {
+        var message = "Expected a `KEY%sVALUE` string, but got: %s".formatted(separator, string);
+        throw new IllegalArgumentException(message);
+      }
+      var key = string.substring(0, index);
+      var value = string.substring(index + 1);
+      return new Property(key, value);
+    }
+
+    static String shorten(String string, int max) {
+      return string.length() <= max ? string : string.substring(0, max - 5) + "[...]";
+    }
+
+    /** {@return the given string as a quoted JSON string literal} */
+    static String json(String string) {
+      var builder = new StringBuilder(string.length() + 2).append('"');
+      for (var c : string.toCharArray()) {
+        if (c == '"' || c == '\\') builder.append('\\').append(c);
+        else if (c < 0x20) builder.append("\\u%04x".formatted((int) c));
+        else builder.append(c);
+      }
+      return builder.append('"').toString();
+    }
+  }
+
+  /** Rebuilds and analyzes the tree of tool runs recorded in a logbook. */
+  static final class ProfileSupport {
+
+    /**
+     * A recorded tool run.
+     *
+     * @param id the identifier of this run, or 0 if the recording didn't include identifiers
+     * @param parent the identifier of the run this run was called by, or 0
+     * @param start the start time in nanoseconds since the epoch
+     * @param end the end time in nanoseconds since the epoch
+     * @param children the runs called by this run, ordered by their start time
+     */
+    record Run(
+        long id,
+        long parent,
+        String name,
+        String args,
+        String thread,
+        long threadId,
+        long start,
+        long end,
+        List<Run> children) {
+
+      long duration() {
+        return end - start;
+      }
+
+      /** {@return the duration of this run, excluding the time covered by any of its children} */
+      long self() {
+        var covered = 0L;
+        var cursor = start;
+        for (var child : children) {
+          var from = Math.max(child.start, cursor);
+          var until = Math.min(child.end, end);
+          if (until <= from) continue;
+          covered += until - from;
+          cursor = until;
+        }
+        return duration() - covered;
+      }
+    }
+
+    record Summary(String name, int runs, long self, long total) {
+      static Summary of(String name, List<Run> runs) {
+        var self = runs.stream().mapToLong(Run::self).sum();
+        var total = runs.stream().mapToLong(Run::duration).sum();
+        return new Summary(name, runs.size(), self, total);
+      }
+
+      @Override
+      public String toString() {
+        return "%-20s %6d %12s %12s".formatted(name, runs, millis(self), millis(total));
+      }
+    }
+
+    record Step(int depth, Run run) {}
+
+    /** {@return all tool runs recorded in the given file, ordered by their start time} */
+    static List<Run> read(Path file) {
+      var runs = new ArrayList<Run>();
+      try (var recording = new RecordingFile(file)) {
+        while (recording.hasMoreEvents()) {
+          var event = recording.readEvent();
+          if (!event.getEventType().getName().equals("Bach.RunEvent")) continue;
+          var thread = event.getThread();
+          runs.add(
+              new Run(
+                  event.hasField("id") ? event.getLong("id") : 0,
+                  event.hasField("parent") ? event.getLong("parent") : 0,
+                  event.getString("name"),
+                  String.valueOf(event.getString("args")),
+                  thread == null ? "" : String.valueOf(thread.getJavaName()),
+                  thread == null ? 0 : thread.getJavaThreadId(),
+                  nanos(event.getStartTime()),
+                  nanos(event.getEndTime()),
+                  new ArrayList<>()));
+        }
+      } catch (IOException exception) {
+        throw new UncheckedIOException(exception);
+      }
+      var byStart = Comparator.comparingLong(Run::start);
+      runs.sort(byStart.thenComparing(Comparator.comparingLong(Run::end).reversed()));
+      return runs;
+    }
+
+    /**
+     * Links the given runs to their parent runs and returns the outermost runs.
+     *
+     * <p>Recordings of earlier versions don't identify the parent run of a run. In that case, a run
+     * is nested into the innermost run of the same thread whose duration covers it.
+     */
+    static List<Run> tree(List<Run> runs) {
+      var roots = new ArrayList<Run>();
+      if (runs.stream().allMatch(run -> run.id() != 0)) {
+        var ids = new HashMap<Long, Run>();
+        for (var run : runs) ids.put(run.id(), run);
+        for (var run : runs) {
+          var parent = ids.get(run.parent());
+          (parent == null ? roots : parent.children()).add(run);
+        }
+        return roots;
+      }
+      var stacks = new HashMap<Long, Deque<Run>>();
+      for (var run : runs) {
+        var stack = stacks.computeIfAbsent(run.threadId(), __ -> new ArrayDeque<>());
+        while (!stack.isEmpty() && stack.peek().end() < run.end()) stack.pop();
+        (stack.isEmpty() ? roots : stack.peek().children()).add(run);
+        stack.push(run);
+      }
+      return roots;
+    }
+
+    /**
+     * {@return the chain of runs that determined when the last of the given sibling runs ended}
+     *
+     * <p>Starting with the sibling that ended last, the sibling that ended last before the current
+     * one started is prepended, until no such sibling is left. Each run of that chain is followed
+     * by the critical path through its own children.
+     */
+    static List<Step> criticalPath(List<Run> siblings, int depth) {
+      var chain = new ArrayList<Run>();
+      var cursor = Long.MAX_VALUE;
+      while (true) {
+        Run last = null;
+        for (var run : siblings) {
+          if (run.end() > cursor || chain.contains(run)) continue;
+          if (last == null || run.end() > last.end()) last = run;
+        }
+        if (last == null) break;
+        chain.add(0, last);
+        cursor = last.start();
+      }
+      var steps = new ArrayList<Step>();
+      for (var run : chain) {
+        steps.add(new Step(depth, run));
+        steps.addAll(criticalPath(run.children(), depth + 1));
+      }
+      return steps;
+    }
+
+    /** {@return the maximum number of the given runs running at the same time} */
+    static int maximumParallelism(List<Run> runs) {
+      var changes = new TreeMap<Long, Integer>();
+      for (var run : runs) {
+        changes.merge(run.start(), 1, Integer::sum);
+        changes.merge(run.end(), -1, Integer::sum);
+      }
+      var current = 0;
+      var maximum = 0;
+      for (var change : changes.values()) {
+        current += change;
+        maximum = Math.max(maximum, current);
+      }
+      return maximum;
+    }
+
+    /** {@return the average number of the given runs running in each of equally long slices} */
+    static double[] parallelism(List<Run> runs, long begin, long end, int slices) {
+      var histogram = new double[slices];
+      var length = Math.max(1, end - begin) / (double) slices;
+      for (int i = 0; i < slices; i++) {
+        var from = begin + length * i;
+        var until = from + length;
+        var busy = 0.0;
+        for (var run : runs) {
+          busy += Math.max(0, Math.min(run.end(), until) - Math.max(run.start(), from));
+        }
+        histogram[i] = busy / length;
+      }
+      return histogram;
+    }
+
+    /** Writes the given runs as complete events of the Chrome trace-event format. */
+    static void writeTrace(Path file, List<Run> runs, long begin) {
+      var events = new StringJoiner(",\n", "{\"traceEvents\": [\n", "\n]}\n");
+      var threads = new TreeMap<Long, String>();
+      for (var run : runs) {
+        threads.put(run.threadId(), run.thread());
+        events.add(
+            """
+            {"name": %s, "cat": "bach", "ph": "X", "pid": 1, "tid": %d, "ts": %.3f, \
+            "dur": %.3f, "args": {"args": %s, "id": %d, "parent": %d}}"""
+                .formatted(
+                    StringSupport.json(run.name()),
+                    run.threadId(),
+                    (run.start() - begin) / 1e3,
+                    run.duration() / 1e3,
+                    StringSupport.json(run.args()),
+                    run.id(),
+                    run.parent()));
+      }
+      threads.forEach(
+          (id, name) ->
+              events.add(
+                  """
+                  {"name": "thread_name", "ph": "M", "pid": 1, "tid": %d, \
+                  "args": {"name": %s}}"""
+                      .formatted(id, StringSupport.json(name))));
+      try {
+        var parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        Files.writeString(file, events.toString());
+      } catch (IOException exception) {
+        throw new UncheckedIOException(exception);
+      }
+    }
+
+    static String millis(long nanos) {
+      return "%,.1f ms".formatted(nanos / 1e6);
+    }
+
+    private static long nanos(Instant instant) {
+      return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+  }
+
+  static final class TestSupport {
+    /** The default class name pattern of the JUnit Platform console launcher. */
+    static final Pattern CLASS_NAME = Pattern.compile("^(Test.*|.+[.$]Test.*|.*Tests?)$");
+
+    /** The outcome of running all tests of a test class. */
+    record Result(int tests, int failed, int aborted, int skipped, long millis) {
+      Result with(Result other) {
+        return new Result(
+            tests + other.tests,
+            failed + other.failed,
+            aborted + other.aborted,
+            skipped + other.skipped,
+            millis + other.millis);
+      }
+
+      String toString(String format, String name) {
+        var successful = tests - failed - aborted - skipped;
+        return format.formatted(name, tests, successful, aborted, failed, skipped);
+      }
+    }
+
+    /** {@return the sorted names of all top-level test classes in the given directories} */
+    static List<String> findTestClasses(List<Path> directories) {
+      var names = new TreeSet<String>();
+      for (var directory : directories) {
+        for (var file : PathSupport.find(directory, "**.class")) {
+          var path = directory.relativize(file).toString();
+          if (path.contains("$") || path.endsWith("module-info.class")) continue;
+          var separator = file.getFileSystem().getSeparator();
+          var name = path.substring(0, path.length() - 6).replace(separator, ".");
+          if (CLASS_NAME.matcher(name).matches()) names.add(name);
+        }
+      }
+      return List.copyOf(names);
+    }
+
+    /**
+     * Distributes the given test classes over shards using the longest processing time heuristic.
+     *
+     * <p>Classes without a recorded duration are assumed to take the average recorded duration.
+     *
+     * @param classes the names of the test classes to distribute
+     * @param durations the recorded durations in milliseconds, keyed by class name
+     * @param shards the maximum number of shards
+     * @return the non-empty shards, each a list of class names
+     */
+    static List<List<String>> balance(List<String> classes, Properties durations, int shards) {
+      if (shards < 1) throw new IllegalArgumentException("Shards must be positive: " + shards);
+      var known = new HashMap<String, Long>();
+      for (var name : durations.stringPropertyNames()) {
+        known.put(name, Long.parseLong(durations.getProperty(name)));
+      }
+      var average = (long) known.values().stream().mapToLong(Long::longValue).average().orElse(1);
+      var sorted = new ArrayList<>(classes);
+      sorted.sort(
+          Comparator.comparing((String name) -> known.getOrDefault(name, average))
+              .reversed()
+              .thenComparing(Comparator.naturalOrder()));
+      var groups = new ArrayList<List<String>>();
+      var totals = new long[Math.min(shards, sorted.size())];
+      for (int i = 0; i < totals.length; i++) groups.add(new ArrayList<>());
+      for (var name : sorted) {
+        var lightest = 0;
+        for (int i = 1; i < totals.length; i++) if (totals[i] < totals[lightest]) lightest = i;
+        groups.get(lightest).add(name);
+        totals[lightest] += known.getOrDefault(name, average);
+      }
+      return groups.stream().map(List::copyOf).toList();
+    }
+
+    /**
+     * {@return the results written by the listener to the given file, keyed by class}
+     *
+     * <p>A missing file, left behind by a launcher that didn't run any test, yields no results.
+     */
+    static Map<String, Result> readResults(Path file) {
+      var results = new TreeMap<String, Result>();
+      if (Files.notExists(file)) return results;
+      try {
+        for (var line : Files.readAllLines(file)) {
+          if (line.isBlank()) continue;
+          var values = line.split(",");
+          var result =
+              new Result(
+                  Integer.parseInt(values[1]),
+                  Integer.parseInt(values[2]),
+                  Integer.parseInt(values[3]),
+                  Integer.parseInt(values[4]),
+                  Long.parseLong(values[5]));
+          results.merge(values[0], result, Result::with);
+        }
+      } catch (Exception exception) {
+        throw new RuntimeException("Reading test results failed: " + file, exception);
+      }
+      return results;
+    }
+
+    /**
+     * Compiles the listener recording the results of a launcher into the given directory.
+     *
+     * <p>The listener is registered as a service and therefore picked up by every launcher with
+     * the returned directory on its class path. The listener's class file is reused until its
+     * source or the launcher jar it was compiled against changed.
+     *
+     * @param directory the directory to compile the listener into a subdirectory of
+     * @param launcher the console launcher jar providing the JUnit Platform API
+     * @return the directory containing the listener's class and service registration
+     */
+    static Path compileListener(Path directory, Path launcher) {
+      var jar = PathSupport.computeChecksum(launcher, "SHA-256");
+      var checksum = StringSupport.checksum(Stream.of(LISTENER, jar));
+      var classes = directory.resolve("listener-" + checksum.substring(0, 16));
+      var service = classes.resolve("META-INF/services/" + LISTENER_SERVICE);
+      if (Files.isRegularFile(service)) return classes;
+      try {
+        PathSupport.delete(classes);
+        var source = directory.resolve("listener").resolve("BachTestResults.java");
+        Files.createDirectories(source.getParent());
+        Files.writeString(source, LISTENER);
+        var javac = ToolProvider.findFirst("javac").orElseThrow();
+        var writer = new StringWriter();
+        var printer = new PrintWriter(writer);
+        var code =
+            javac.run(
+                printer,
+                printer,
+                "--class-path",
+                launcher.toString(),
+                "-d",
+                classes.toString(),
+                source.toString());
+        if (code != 0) throw new IllegalStateException("Compiling listener failed\n" + writer);
+        Files.createDirectories(service.getParent());
+        Files.writeString(service, "BachTestResults\n");
+        return classes;
+      } catch (IOException exception) {
+        throw new UncheckedIOException(exception);
+      }
+    }
+
+    /** The configuration parameter naming the file the listener writes its results to. */
+    static final String RESULTS = "bach.test.results";
+
+    private static final String LISTENER_SERVICE =
+        "org.junit.platform.launcher.TestExecutionListener";
+
+    /**
+     * The source of a listener writing a line of comma-separated results per top-level class.
+     *
+     * <p>Each test is counted by the status reported by the JUnit Platform: a line holds the name
+     * of the class, the number of tests, of failed, aborted, and skipped tests, and the sum of the
+     * test durations in milliseconds. Tests of a skipped container are counted as skipped.
+     */
+    private static final String LISTENER =
+        """
+        import java.io.IOException;
+        import java.io.UncheckedIOException;
+        import java.nio.file.Files;
+        import java.nio.file.Path;
+        import java.util.Map;
+        import java.util.TreeMap;
+        import java.util.concurrent.ConcurrentHashMap;
+        import org.junit.platform.engine.TestExecutionResult;
+        import org.junit.platform.engine.support.descriptor.ClassSource;
+        import org.junit.platform.launcher.TestExecutionListener;
+        import org.junit.platform.launcher.TestIdentifier;
+        import org.junit.platform.launcher.TestPlan;
+
+        public class BachTestResults implements TestExecutionListener {
+          private final Map<String, long[]> results = new TreeMap<>();
+          private final Map<String, Long> starts = new ConcurrentHashMap<>();
+          private volatile TestPlan plan;
+
+          @Override
+          public void testPlanExecutionStarted(TestPlan plan) {
+            this.plan = plan;
+          }
+
+          @Override
+          public void executionSkipped(TestIdentifier identifier, String reason) {
+            if (identifier.isTest()) count(identifier, 3, 0);
+            for (var test : plan.getDescendants(identifier)) if (test.isTest()) count(test, 3, 0);
+          }
+
+          @Override
+          public void executionStarted(TestIdentifier identifier) {
+            if (identifier.isTest()) starts.put(identifier.getUniqueId(), System.nanoTime());
+          }
+
+          @Override
+          public void executionFinished(TestIdentifier identifier, TestExecutionResult result) {
+            if (!identifier.isTest()) return;
+            var start = starts.remove(identifier.getUniqueId());
+            var millis = start == null ? 0 : (System.nanoTime() - start) / 1_000_000;
+            switch (result.getStatus()) {
+              case SUCCESSFUL -> count(identifier, 0, millis);
+              case FAILED -> count(identifier, 1, millis);
+              case ABORTED -> count(identifier, 2, millis);
+            }
+          }
+
+          @Override
+          public void testPlanExecutionFinished(TestPlan plan) {
+            var file = plan.getConfigurationParameters().get("bach.test.results");
+            if (file.isEmpty()) return;
+            var lines = new StringBuilder();
+            synchronized (results) {
+              results.forEach(
+                  (name, values) ->
+                      lines.append(
+                          "%s,%d,%d,%d,%d,%d%n"
+                              .formatted(
+                                  name, values[0], values[1], values[2], values[3], values[4])));
+            }
+            try {
+              var path = Path.of(file.get());
+              Files.createDirectories(path.toAbsolutePath().getParent());
+              Files.writeString(path, lines);
+            } catch (IOException exception) {
+              throw new UncheckedIOException(exception);
+            }
+          }
+
+          /** Counts the test for its top-level class, in the given column unless successful. */
+          private void count(TestIdentifier test, int column, long millis) {
+            String name = null;
+            for (var identifier = test; identifier != null; ) {
+              if (identifier.getSource().orElse(null) instanceof ClassSource source) {
+                name = source.getClassName().split("\\\\$")[0];
+              }
+              identifier = plan.getParent(identifier).orElse(null);
+            }
+            if (name == null) name = test.getUniqueId();
+            synchronized (results) {
+              var values = results.computeIfAbsent(name, key -> new long[5]);
+              values[0]++;
+              if (column > 0) values[column]++;
+              values[4] += millis;
+            }
+          }
+        }
+        """;
+  }
+
+  /**
+   * Serves tool calls sent by thin clients over a Unix-domain socket.
+   *
+   * <p>A daemon keeps a warm instance of Bach, including its tool finder and the in-process tool
+   * providers found by it, and runs each client's command line with an instance sharing these
+   * parts. The instance is rebuilt when {@code bach.properties}, the basic tools directory, or
+   * one of its files changed, compared by their last-modified times. Entries created in or
+   * deleted from the programs directory are picked up by the cached tool finder.
+   *
+   * <p>Clients are served one at a time, in the order they connected. Each session records its
+   * own logbook to the same file, and a JFR recording captures the events of all threads of the
+   * process: running sessions one after the other keeps their logbooks complete and separate.
+   *
+   * <p>A client sends its working directory and command-line arguments. The daemon answers with
+   * frames of a type byte and a payload: {@link #OUT} and {@link #ERR} frames carry a printed
+   * line, an {@link #EXIT} frame carries the exit code and ends the conversation.
+   */
+  static final class DaemonSupport {
+
+    static final byte EXIT = 0, OUT = 1, ERR = 2;
+
+    private record Warm(Bach bach, Map<Path, FileTime> stamps) {}
+
+    static Path socket(Path out) {
+      return out.resolve("bach.socket").toAbsolutePath();
+    }
+
+    static void serve(Bach bach) throws Exception {
+      var socket = socket(bach.paths().out());
+      Files.createDirectories(socket.getParent());
+      Files.deleteIfExists(socket);
+      var warm = new Warm(bach, stamps(bach.paths().root()));
+      try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+        server.bind(UnixDomainSocketAddress.of(socket));
+        bach.log(Level.INFO, "Listening on %s", socket);
+        while (!Thread.currentThread().isInterrupted()) {
+          var channel = server.accept();
+          var stamps = stamps(bach.paths().root());
+          if (!stamps.equals(warm.stamps())) {
+            bach.log(Level.INFO, "Reloading after configuration changed");
+            warm = new Warm(Bach.of(bach.printer(), bach.options()), stamps);
+          }
+          handle(warm.bach(), channel);
+        }
+      } finally {
+        Files.deleteIfExists(socket);
+      }
+    }
+
+    /**
+     * {@return the last-modified times of the configuration files of the given project}
+     *
+     * <p>Covers {@code bach.properties}, the basic tools directory, and each of its entries. A
+     * missing file is stamped with the epoch.
+     */
+    static Map<Path, FileTime> stamps(Path root) throws IOException {
+      var stamps = new TreeMap<Path, FileTime>();
+      var properties = root.resolve("bach.properties");
+      var basics = root.resolve(".bach/basic-tools");
+      stamps.put(properties, lastModifiedTime(properties));
+      stamps.put(basics, lastModifiedTime(basics));
+      if (Files.isDirectory(basics)) {
+        try (var stream = Files.list(basics)) {
+          for (var path : stream.toList()) stamps.put(path, lastModifiedTime(path));
+        }
+      }
+      return stamps;
+    }
+
+    private static void handle(Bach daemon, SocketChannel channel) {
+      try (channel) {
+        var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        var directory = readString(in);
+        var args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) args[i] = readString(in);
+        var printer =
+            new Printer(
+                line -> send(out, OUT, line),
+                line -> send(out, ERR, line),
+                new Printer.Lines(Printer.Lines.DEFAULT_CAPACITY, Level.ALL));
+        var options = Options.of(args);
+        var paths = daemon.paths();
+        var code = 2;
+        if (!directory.equals(Path.of("").toAbsolutePath().toString())) {
+          printer.error("Daemon runs in a different working directory: " + Path.of("").toUri());
+        } else if (!options.__chroot().equals(paths.root())) {
+          printer.error("Daemon serves a different root directory: " + paths.root().toUri());
+        } else {
+          var bach = new Bach(printer, options, paths, daemon.externals(), daemon.tools());
+          try {
+            code = bach.main();
+          } catch (AssertionError error) {
+            printer.error(error.getMessage().strip());
+            code = 1;
+          }
+        }
+        synchronized (out) {
+          out.writeByte(EXIT);
+          out.writeInt(code);
+          out.flush();
+        }
+      } catch (Exception exception) {
+        daemon.log(Level.WARNING, "Serving client failed: %s", exception);
+      }
+    }
+
+    /** {@return the exit code of the call, or empty if no daemon is listening on the socket} */
+    static OptionalInt connect(
+        Path socket, Consumer<String> printOut, Consumer<String> printErr, String... args) {
+      if (!Files.exists(socket)) return OptionalInt.empty();
+      SocketChannel channel;
+      try {
+        channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+      } catch (IOException exception) {
+        return OptionalInt.empty();
+      }
+      try (channel) {
+        var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        writeString(out, Path.of("").toAbsolutePath().toString());
+        out.writeInt(args.length);
+        for (var arg : args) writeString(out, arg);
+        out.flush();
+        var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        while (true) {
+          var type = in.readByte();
+          if (type == EXIT) return OptionalInt.of(in.readInt());
+          var line = readString(in);
+          if (type == OUT) printOut.accept(line);
+          else printErr.accept(line);
+        }
+      } catch (IOException exception) {
+        throw new UncheckedIOException(exception);
+      }
+    }
+
+    private static void send(DataOutputStream out, byte type, String line) {
+      synchronized (out) {
+        try {
+          out.writeByte(type);
+          writeString(out, line);
+          out.flush();
+        } catch (IOException exception) {
+          throw new UncheckedIOException(exception);
+        }
+      }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+      return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+      var bytes = string.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    private static FileTime lastModifiedTime(Path file) throws IOException {
+      return Files.exists(file) ? Files.getLastModifiedTime(file) : FileTime.fromMillis(0);
+    }
+  }
+
+  static final class ThreadSupport {
+    /** The source of identifiers of tool runs, linking recorded runs to their parent runs. */
+    static final AtomicLong RUNS = new AtomicLong();
+
+    private static final ThreadLocal<Long> RUN = ThreadLocal.withInitial(() -> 0L);
+
+    /** {@return the identifier of the tool run in progress on the current thread, or 0} */
+    static long currentRun() {
+      return RUN.get();
+    }
+
+    /** Sets the tool run in progress on the current thread, and returns the previous one. */
+    static long swapRun(long run) {
+      var previous = RUN.get();
+      RUN.set(run);
+      return previous;
+    }
+
+    /** Runs the given runnable on the current thread as part of the given tool run. */
+    static void runAs(long run, Runnable runnable) {
+      var previous = swapRun(run);
+      try {
+        runnable.run();
+      } finally {
+        swapRun(previous);
+      }
+    }
+
+    /** {@return a runnable running the given one as part of the current thread's tool run} */
+    static Runnable inherit(Runnable runnable) {
+      var run = currentRun();
+      return () -> runAs(run, runnable);
+    }
+
+    /** {@return a consumer running the given one as part of the current thread's tool run} */
+    static <T> Consumer<T> inheritConsumer(Consumer<T> consumer) {
+      var run = currentRun();
+      return value -> {
+        var previous = swapRun(run);
+        try {
+          consumer.accept(value);
+        } finally {
+          swapRun(previous);
+        }
+      };
+    }
+
+    /** {@return a predicate testing as part of the current thread's tool run} */
+    static <T> Predicate<T> inheritPredicate(Predicate<T> predicate) {
+      var run = currentRun();
+      return value -> {
+        var previous = swapRun(run);
+        try {
+          return predicate.test(value);
+        } finally {
+          swapRun(previous);
+        }
+      };
+    }
+
+    /** Waits for all given futures to complete and rethrows the first failure's cause. */
+    static void joinAll(Collection<? extends CompletableFuture<?>> futures) {
+      try {
+        CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).join();
+      } catch (CompletionException exception) {
+        var cause = exception.getCause();
+        if (cause instanceof RuntimeException runtime) throw runtime;
+        if (cause instanceof Error error) throw error;
+        throw exception;
+      }
+    }
+  }
+
+  static final class ToolNotFoundException extends RuntimeException {
+    @java.io.Serial private static final long serialVersionUID = -417539767734303099L;
 
     public ToolNotFoundException(String name) {
       super("Tool named `%s` not found".formatted(name));
     }
   }
 
+  /**
+   * A JFR recording of a session's events, written to {@code bach-logbook.jfr}.
+   *
+   * <p>The recording uses the event settings named by {@code --logbook-settings}, either a
+   * predefined configuration like {@code default} or {@code profile}, or a path to a {@code .jfc}
+   * file. Without settings, only Bach's own events are recorded. Size and age limits given by
+   * {@code --logbook-max-size} in megabytes and {@code --logbook-max-age} in seconds make the
+   * recording keep its events on disk and discard the oldest ones.
+   *
+   * <p>By default, the recording is written when it is closed, or when the process exits before.
+   * With {@code --logbook-stream}, events are also written continuously as text lines to {@code
+   * bach-logbook.txt}, leaving a logbook behind if the process is killed.
+   */
+  static final class Logbook implements AutoCloseable {
+
+    /**
+     * Names of tools whose sessions are not recorded.
+     *
+     * <p>A daemon runs until it is stopped and each of its clients records a logbook of its own.
+     * A profile reads the logbook of the previous session, which must not be replaced by the
+     * recording of the profile session itself.
+     */
+    private static final Set<String> UNRECORDED_TOOLS = Set.of("daemon", "profile");
+
+    /**
+     * Starts recording a logbook.
+     *
+     * @param options the options configuring the recording
+     * @param directory the directory to write the logbook files to
+     * @param errors the consumer of messages reporting failures to write the logbook
+     */
+    static Logbook start(Options options, Path directory, Consumer<String> errors)
+        throws Exception {
+      var unrecorded = options.seed() != null && UNRECORDED_TOOLS.contains(options.seed().name());
+      if (options.flags().contains(Flag.NO_LOGBOOK) || unrecorded) {
+        return new Logbook(null, null, null, null, errors);
+      }
+      var settings = options.__logbook_settings();
+      var configuration =
+          settings == null
+              ? null
+              : settings.endsWith(".jfc")
+                  ? Configuration.create(Path.of(settings))
+                  : Configuration.getConfiguration(settings);
+      var file = directory.resolve("bach-logbook.jfr");
+      if (options.flags().contains(Flag.LOGBOOK_STREAM)) {
+        var stream =
+            configuration == null ? new RecordingStream() : new RecordingStream(configuration);
+        var writer = Files.newBufferedWriter(directory.resolve("bach-logbook.txt"));
+        var logbook = new Logbook(null, stream, writer, file, errors);
+        stream.onEvent("Bach.LogEvent", logbook::write);
+        stream.onEvent("Bach.RunEvent", logbook::write);
+        stream.onFlush(logbook::flushed);
+        if (options.__logbook_max_size() > 0) stream.setMaxSize(options.__logbook_max_size());
+        if (options.__logbook_max_age() != null) stream.setMaxAge(options.__logbook_max_age());
+        stream.startAsync();
+        return logbook;
+      }
+      var recording = configuration == null ? new Recording() : new Recording(configuration);
+      if (options.__logbook_max_size() > 0) recording.setMaxSize(options.__logbook_max_size());
+      if (options.__logbook_max_age() != null) recording.setMaxAge(options.__logbook_max_age());
+      recording.setToDisk(options.__logbook_max_size() > 0 || options.__logbook_max_age() != null);
+      recording.setDestination(file);
+      recording.setDumpOnExit(true);
+      recording.start();
+      return new Logbook(recording, null, null, file, errors);
+    }
+
+    private final Recording recording;
+    private final RecordingStream stream;
+    private final Writer writer;
+    private final Path file;
+    private final Consumer<String> errors;
+    private long flushes = 0;
+    private boolean failed = false;
+
+    private Logbook(
+        Recording recording,
+        RecordingStream stream,
+        Writer writer,
+        Path file,
+        Consumer<String> errors) {
+      this.recording = recording;
+      this.stream = stream;
+      this.writer = writer;
+      this.file = file;
+      this.errors = errors;
+    }
+
+    private synchronized void flushed() {
+      flushes++;
+      notifyAll();
+    }
+
+    private void write(RecordedEvent event) {
+      var line = new StringJoiner(" ").add(event.getStartTime().toString());
+      if (event.hasField("level")) {
+        line.add(event.getString("level")).add(event.getString("message"));
+      } else {
+        line.add("RUN").add(event.getString("name")).add(String.valueOf(event.getString("args")));
+        line.add("->").add(Integer.toString(event.getInt("code")));
+        line.add("in").add(event.getDuration().toString());
+      }
+      synchronized (writer) {
+        if (failed) return;
+        try {
+          writer.write(line + System.lineSeparator());
+          writer.flush();
+        } catch (IOException exception) {
+          failed = true;
+          errors.accept("Writing logbook text failed: " + exception);
+        }
+      }
+    }
+
+    /** Waits until the stream signalled the given number of flushes, or the timeout elapsed. */
+    private synchronized void awaitFlushes(long count, Duration timeout) {
+      var target = flushes + count;
+      var deadline = System.nanoTime() + timeout.toNanos();
+      try {
+        for (var rest = timeout.toNanos(); flushes < target && rest > 0; ) {
+          TimeUnit.NANOSECONDS.timedWait(this, rest);
+          rest = deadline - System.nanoTime();
+        }
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        if (recording != null) {
+          recording.stop();
+          recording.close();
+          return;
+        }
+        if (stream == null) return;
+        try (writer) {
+          stream.dump(file);
+          // wait for a complete flush to write all events committed so far
+          awaitFlushes(2, Duration.ofSeconds(5));
+        } finally {
+          stream.close();
+        }
+      } catch (IOException exception) {
+        errors.accept("Writing logbook failed: " + exception);
+      }
+    }
+  }
+
   @Category("Bach")
   @Name("Bach.LogEvent")
   @Label("Log")
@@ -907,11 +4583,18 @@ public record Bach(
     String message;
   }
 
+  /** Holds the type of log events, registered with JFR when first used. */
+  static final class LogEventType {
+    static final EventType TYPE = EventType.getEventType(LogEvent.class);
+  }
+
   @Category("Bach")
   @Name("Bach.RunEvent")
   @Label("Run")
   @StackTrace(false)
   static final class RunEvent extends Event {
+    long id;
+    long parent;
     String name;
     String args;
     int code;
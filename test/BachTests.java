@@ -1,7 +1,51 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.spi.ToolProvider;
+import java.util.stream.Stream;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -19,6 +63,850 @@ class BachTests {
     assertTrue(bach.printer().lines().isEmpty());
   }
 
+  @Test
+  void externalsAreReadOnFirstAccess(@TempDir Path temp) throws Exception {
+    var properties = temp.resolve("bach.properties");
+    Files.writeString(properties, "bach.externals.download-concurrency=x\n");
+    var bach = Bach.of(Bach.Printer.ofSilent(), "--chroot", temp.toString());
+    assertEquals(properties, bach.externals().file());
+    Files.writeString(properties, "bach.externals.download-concurrency=7\n");
+    assertEquals(7, bach.externals().downloadConcurrency());
+    Files.delete(properties);
+    assertEquals(7, bach.externals().downloadConcurrency());
+  }
+
+  @Test
+  void printerRetainsLastLinesAtOrAboveThreshold() {
+    var printer = Bach.Printer.ofSilent(2, System.Logger.Level.INFO);
+    printer.print("1");
+    printer.error("2");
+    printer.print("3");
+    var texts = printer.lines().stream().map(Bach.Printer.Line::text).toList();
+    assertEquals(List.of("2", "3"), texts);
+    var errors = Bach.Printer.ofSilent(8, System.Logger.Level.ERROR);
+    errors.print("1");
+    assertTrue(errors.lines().isEmpty());
+  }
+
+  @Test
+  void asyncWriterKeepsOrderAndFallsBackAfterFailure() {
+    var written = new ConcurrentLinkedQueue<String>();
+    var failing = new AtomicBoolean();
+    var fallbackOut = new ByteArrayOutputStream();
+    var fallbackErr = new ByteArrayOutputStream();
+    var writer =
+        new Bach.Printer.AsyncWriter(
+            channel("out", written, failing),
+            channel("err", written, failing),
+            new PrintStream(fallbackOut, true, StandardCharsets.UTF_8),
+            new PrintStream(fallbackErr, true, StandardCharsets.UTF_8));
+    var separator = System.lineSeparator();
+    writer.out("1");
+    writer.err("2");
+    writer.out("3");
+    writer.close();
+    var expected = List.of("out:1" + separator, "err:2" + separator, "out:3" + separator);
+    assertEquals(expected, List.copyOf(written));
+
+    failing.set(true);
+    writer.out("4");
+    writer.err("5");
+    assertEquals("4" + separator, fallbackOut.toString(StandardCharsets.UTF_8));
+    var errors = fallbackErr.toString(StandardCharsets.UTF_8).lines().toList();
+    assertEquals(2, errors.size(), errors.toString());
+    assertTrue(errors.get(0).startsWith("Printing asynchronously failed"), errors.get(0));
+    assertEquals("5", errors.get(1));
+  }
+
+  private static WritableByteChannel channel(
+      String name, Queue<String> written, AtomicBoolean failing) {
+    return new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer buffer) throws IOException {
+        if (failing.get()) throw new IOException("Broken " + name);
+        var length = buffer.remaining();
+        written.add(name + ':' + StandardCharsets.UTF_8.decode(buffer));
+        return length;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  @Test
+  void cachedToolFinderReindexesChangedDirectory(@TempDir Path temp) throws Exception {
+    var finder = Bach.ToolFinder.cached(Bach.ToolFinder.ofBasicTools(temp), temp);
+    assertTrue(finder.find("foo").isEmpty());
+    var file = Files.writeString(temp.resolve("foo.properties"), "10 banner\\n  FOO");
+    var foo = finder.find("foo").orElseThrow();
+    assertSame(foo, finder.find("foo").orElseThrow());
+    Files.writeString(file, "10 banner\\n  BAR");
+    Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(60)));
+    assertNotSame(foo, finder.find("foo").orElseThrow());
+  }
+
+  @Test
+  void moduleLayers(@TempDir Path temp) throws Exception {
+    Files.createDirectories(temp.resolve("a"));
+    Files.createDirectories(temp.resolve("b"));
+    Files.createDirectories(temp.resolve("c"));
+    Files.writeString(temp.resolve("a/module-info.java"), "module a { requires java.base; }");
+    Files.writeString(temp.resolve("b/module-info.java"), "module b { requires transitive a; }");
+    Files.writeString(temp.resolve("c/module-info.java"), "open module c { /* requires b; */ }");
+    var modules = Bach.ModuleSupport.findSourceModules(temp, temp.resolve(".bach/out"));
+    var layers = Bach.ModuleSupport.layers(modules);
+    var names = layers.stream().map(layer -> layer.stream().map(m -> m.name()).toList()).toList();
+    assertEquals(List.of(List.of("a", "c"), List.of("b")), names);
+  }
+
+  @Test
+  void apiChecksumIgnoresPrivateChanges(@TempDir Path temp) throws Exception {
+    var one = apiChecksum(temp.resolve("one"), "public class A { private int a() { return 1; } }");
+    var two = apiChecksum(temp.resolve("two"), "public class A { private int a() { return 2; } }");
+    var six =
+        apiChecksum(temp.resolve("six"), "public class A { protected int a() { return 6; } }");
+    assertEquals(one, two);
+    assertNotEquals(one, six);
+  }
+
+  private static String apiChecksum(Path directory, String source) throws Exception {
+    var file = Files.writeString(Files.createDirectories(directory).resolve("A.java"), source);
+    var javac = ToolProvider.findFirst("javac").orElseThrow();
+    var classes = directory.resolve("classes");
+    assertEquals(0, javac.run(System.out, System.err, "-d", classes.toString(), file.toString()));
+    return Bach.ModuleSupport.computeApiChecksum(classes);
+  }
+
+  @Test
+  void workerReusesWarmProcessUntilProgramExits(@TempDir Path temp) throws Exception {
+    var source =
+        """
+        public class Main {
+          public static void main(String... args) {
+            System.out.println(ProcessHandle.current().pid() + " " + String.join(" ", args));
+            System.err.print("partial");
+            if (args[0].equals("exit")) System.exit(3);
+          }
+        }
+        """;
+    var file = Files.writeString(temp.resolve("Main.java"), source);
+    var classes = temp.resolve("classes").toString();
+    var jar = temp.resolve("main.jar");
+    var javac = ToolProvider.findFirst("javac").orElseThrow();
+    assertEquals(0, javac.run(System.out, System.err, "-d", classes, file.toString()));
+    var archiver = ToolProvider.findFirst("jar").orElseThrow();
+    var args = new String[] {"-c", "-f", jar.toString(), "-e", "Main", "-C", classes, "."};
+    assertEquals(0, archiver.run(System.out, System.err, args));
+
+    var java = Path.of(System.getProperty("java.home"), "bin", "java");
+    var worker = new Bach.ToolFinder.WorkerToolProvider("main", java, jar);
+    var one = runWorker(worker, "one");
+    var pid = one.get(1).split(" ")[0];
+    assertEquals(List.of("0", pid + " one", "partial"), one);
+    assertEquals(List.of("0", pid + " two", "partial"), runWorker(worker, "two"));
+    assertEquals(List.of("3", pid + " exit", "partial"), runWorker(worker, "exit"));
+
+    // a program that exited its worker runs in a new process for each later call
+    var four = runWorker(worker, "four");
+    assertEquals("0", four.get(0));
+    assertEquals("partial", four.get(2));
+    var five = runWorker(worker, "five");
+    var pids = Set.of(pid, four.get(1).split(" ")[0], five.get(1).split(" ")[0]);
+    assertEquals(3, pids.size(), pids.toString());
+  }
+
+  @Test
+  void inProcessRunsMainClassAndReloadsChangedJar(@TempDir Path temp) throws Exception {
+    var jar = temp.resolve("main.jar");
+    var source =
+        """
+        public class Main {
+          public static void main(String... args) {
+            System.out.println(ProcessHandle.current().pid() + " %s " + args[0]);
+            System.err.print("partial");
+          }
+        }
+        """;
+    var pid = ProcessHandle.current().pid();
+    var program = new Bach.ToolFinder.InProcessToolProvider("main", jar);
+    archiveMainClass(temp.resolve("one"), source.formatted("one"), jar);
+    assertEquals(List.of("0", pid + " one a", "partial"), runWorker(program, "a"));
+    assertEquals(List.of("0", pid + " one b", "partial"), runWorker(program, "b"));
+    archiveMainClass(temp.resolve("two"), source.formatted("two"), jar);
+    Files.setLastModifiedTime(jar, FileTime.from(Instant.now().plusSeconds(60)));
+    assertEquals(List.of("0", pid + " two c", "partial"), runWorker(program, "c"));
+  }
+
+  private static void archiveMainClass(Path directory, String source, Path jar) throws Exception {
+    var file = Files.writeString(Files.createDirectories(directory).resolve("Main.java"), source);
+    var classes = directory.resolve("classes").toString();
+    var javac = ToolProvider.findFirst("javac").orElseThrow();
+    assertEquals(0, javac.run(System.out, System.err, "-d", classes, file.toString()));
+    var archiver = ToolProvider.findFirst("jar").orElseThrow();
+    var args = new String[] {"-c", "-f", jar.toString(), "-e", "Main", "-C", classes, "."};
+    assertEquals(0, archiver.run(System.out, System.err, args));
+  }
+
+  private static List<String> runWorker(ToolProvider worker, String argument) {
+    var out = new StringWriter();
+    var err = new StringWriter();
+    var code = worker.run(new PrintWriter(out, true), new PrintWriter(err, true), argument);
+    return List.of(Integer.toString(code), out.toString().strip(), err.toString().strip());
+  }
+
+  @Test
+  void executeProgramJoinsOutputAndKillsProcess(@TempDir Path temp) throws Exception {
+    var source =
+        """
+        public class Program {
+          public static void main(String... args) throws Exception {
+            System.out.println(ProcessHandle.current().pid());
+            if (args[0].equals("sleep")) Thread.sleep(60_000);
+            else for (int i = 1; i <= Integer.parseInt(args[0]); i++) System.out.println(i);
+          }
+        }
+        """;
+    var file = Files.writeString(temp.resolve("Program.java"), source);
+    var classes = temp.resolve("classes").toString();
+    var javac = ToolProvider.findFirst("javac").orElseThrow();
+    assertEquals(0, javac.run(System.out, System.err, "-d", classes, file.toString()));
+    var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    var program =
+        new Bach.ToolFinder.ExecuteProgramToolProvider(
+            "program", List.of(java, "-cp", classes, "Program"));
+
+    var lines = new ConcurrentLinkedQueue<String>();
+    var writer = new PrintWriter(new Bach.LineForwardingWriter(lines::add, 0), true);
+    assertEquals(0, program.run(writer, writer, "1000"));
+    assertEquals("1000", List.copyOf(lines).get(lines.size() - 1));
+    assertEquals(1001, lines.size());
+
+    lines.clear();
+    var timeout = program.withTimeout(Duration.ofMillis(500));
+    assertEquals(-1, timeout.run(writer, writer, "sleep"));
+    var killed = lines.stream().anyMatch(line -> line.startsWith("Killed program"));
+    assertTrue(killed, lines.toString());
+    assertProcessEnds(Long.parseLong(lines.peek()));
+
+    lines.clear();
+    var code = new AtomicInteger();
+    var interrupted = new AtomicBoolean();
+    var caller =
+        new Thread(
+            () -> {
+              code.set(program.run(writer, writer, "sleep"));
+              interrupted.set(Thread.currentThread().isInterrupted());
+            });
+    caller.start();
+    for (int i = 0; i < 100 && lines.isEmpty(); i++) Thread.sleep(100);
+    caller.interrupt();
+    caller.join();
+    assertEquals(-1, code.get());
+    assertTrue(interrupted.get());
+    assertProcessEnds(Long.parseLong(lines.peek()));
+
+    var logs = temp.resolve("logs");
+    var bach = Bach.of(Bach.Printer.ofSilent(), "--program-output", logs.toString());
+    bach.run(program, Bach.ToolCall.of("program", "2"), System.Logger.Level.DEBUG);
+    try (var stream = Files.list(logs)) {
+      var log = stream.toList();
+      assertEquals(1, log.size());
+      assertTrue(log.get(0).getFileName().toString().matches("program-\\d+\\.log"));
+      assertEquals(List.of("1", "2"), Files.readAllLines(log.get(0)).subList(1, 3));
+    }
+  }
+
+  private static void assertProcessEnds(long pid) throws Exception {
+    var process = ProcessHandle.of(pid);
+    if (process.isPresent()) process.get().onExit().get(9, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void daemonServesClientsOneAfterAnother(@TempDir Path temp) throws Exception {
+    var out = temp.toString();
+    var server = startDaemon(Bach.of(Bach.Printer.ofSilent(), "--destination", out));
+    try {
+      var socket = Bach.DaemonSupport.socket(temp);
+      for (int i = 0; i < 100 && Files.notExists(socket); i++) Thread.sleep(100);
+      var lines = new ConcurrentLinkedQueue<String>();
+      var clients =
+          Stream.of("one", "two")
+              .map(name -> new String[] {"--destination", out, "banner", name})
+              .map(
+                  args ->
+                      CompletableFuture.supplyAsync(
+                          () -> Bach.DaemonSupport.connect(socket, lines::add, lines::add, args)))
+              .toList();
+      for (var client : clients) assertEquals(OptionalInt.of(0), client.get());
+      assertTrue(lines.stream().anyMatch(line -> line.contains("one")), lines.toString());
+      assertTrue(lines.stream().anyMatch(line -> line.contains("two")), lines.toString());
+      assertTrue(Files.exists(temp.resolve("bach-logbook.jfr")));
+    } finally {
+      server.interrupt();
+    }
+  }
+
+  @Test
+  void daemonReloadsBasicToolChangedInPlace(@TempDir Path temp) throws Exception {
+    var root = temp.toString();
+    var basics = Files.createDirectories(temp.resolve(".bach/basic-tools"));
+    var greet = Files.writeString(basics.resolve("greet.properties"), "10 banner\\n  HELLO");
+    var server = startDaemon(Bach.of(Bach.Printer.ofSilent(), "--chroot", root));
+    try {
+      var socket = Bach.DaemonSupport.socket(temp.resolve(".bach/out"));
+      for (int i = 0; i < 100 && Files.notExists(socket); i++) Thread.sleep(100);
+      var lines = new ConcurrentLinkedQueue<String>();
+      var args = new String[] {"--chroot", root, "--no-logbook", "greet"};
+      var code = Bach.DaemonSupport.connect(socket, lines::add, lines::add, args);
+      assertEquals(OptionalInt.of(0), code);
+      assertTrue(lines.stream().anyMatch(line -> line.contains("HELLO")), lines.toString());
+
+      var time = Files.getLastModifiedTime(basics);
+      Files.writeString(greet, "10 banner\\n  WORLD");
+      Files.setLastModifiedTime(greet, FileTime.from(Instant.now().plusSeconds(10)));
+      Files.setLastModifiedTime(basics, time);
+      lines.clear();
+      code = Bach.DaemonSupport.connect(socket, lines::add, lines::add, args);
+      assertEquals(OptionalInt.of(0), code);
+      assertTrue(lines.stream().anyMatch(line -> line.contains("WORLD")), lines.toString());
+    } finally {
+      server.interrupt();
+    }
+  }
+
+  private static Thread startDaemon(Bach daemon) {
+    var server =
+        new Thread(
+            () -> {
+              try {
+                Bach.DaemonSupport.serve(daemon);
+              } catch (Exception exception) {
+                // interrupted
+              }
+            });
+    server.setDaemon(true);
+    server.start();
+    return server;
+  }
+
+  @Test
+  void downloadsConcurrentlyAndResumesInterruptedTransfer(@TempDir Path temp) throws Exception {
+    var bytes = "0123456789".repeat(1000).getBytes(StandardCharsets.UTF_8);
+    var sha = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    var ranges = new ConcurrentLinkedQueue<String>();
+    var aborted = new AtomicBoolean();
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          try (exchange) {
+            var range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+              ranges.add(range);
+              var offset = Integer.parseInt(range.substring(6, range.length() - 1));
+              var content = "bytes %d-%d/%d".formatted(offset, bytes.length - 1, bytes.length);
+              exchange.getResponseHeaders().set("Content-Range", content);
+              exchange.sendResponseHeaders(206, bytes.length - offset);
+              exchange.getResponseBody().write(bytes, offset, bytes.length - offset);
+              return;
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            var abort = exchange.getRequestURI().getPath().equals("/flaky");
+            if (abort && aborted.compareAndSet(false, true)) {
+              exchange.getResponseBody().write(bytes, 0, 4000);
+              exchange.getResponseBody().flush();
+              throw new IOException("Abort transfer after 4000 bytes");
+            }
+            exchange.getResponseBody().write(bytes);
+          }
+        });
+    server.start();
+    try {
+      var base = "http://127.0.0.1:" + server.getAddress().getPort();
+      var flaky = temp.resolve("flaky.txt");
+      var plain = temp.resolve("plain.txt");
+      Files.writeString(temp.resolve("plain.txt.part"), "stale");
+      var bach = Bach.of(Bach.Printer.ofSilent(), "--chroot", temp.toString());
+      bach.download(
+          Map.of(
+              flaky, URI.create(base + "/flaky#SHA-256=" + sha),
+              plain, URI.create(base + "/plain")));
+      assertArrayEquals(bytes, Files.readAllBytes(flaky));
+      assertArrayEquals(bytes, Files.readAllBytes(plain));
+      assertEquals(List.of("bytes=4000-"), List.copyOf(ranges));
+      assertFalse(Files.exists(temp.resolve("plain.txt.part")));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  void testModulesAreDetectedBelowTheProjectRoot() {
+    var root = Path.of("home", "test", "project").toAbsolutePath();
+    var main = root.resolve("main/m/module-info.java");
+    var test = root.resolve("test/t/module-info.java");
+    assertFalse(new Bach.ModuleSupport.SourceModule("m", main, Set.of()).isTestModule(root));
+    assertTrue(new Bach.ModuleSupport.SourceModule("t", test, Set.of()).isTestModule(root));
+  }
+
+  @Test
+  void testRunsTestModuleRequiringJupiterApi(@TempDir Path temp) throws Exception {
+    copyJUnitLauncher(temp);
+    Files.createDirectories(temp.resolve("main/a/a"));
+    Files.writeString(temp.resolve("main/a/module-info.java"), "module a { exports a; }");
+    var a = "package a; public class A { public int one() { return 1; } }";
+    Files.writeString(temp.resolve("main/a/a/A.java"), a);
+    Files.createDirectories(temp.resolve("test/t/t"));
+    Files.writeString(
+        temp.resolve("test/t/module-info.java"),
+        "open module t { requires a; requires org.junit.jupiter.api; }");
+    var test = temp.resolve("test/t/t/ATests.java");
+    var source =
+        """
+        package t;
+        class ATests {
+          @org.junit.jupiter.api.Test
+          void one() {
+            org.junit.jupiter.api.Assertions.assertEquals(%d, new a.A().one());
+          }
+        }
+        """;
+    Files.writeString(test, source.formatted(1));
+    var bach = Bach.of(Bach.Printer.ofSilent(), "--chroot", temp.toString(), "--no-logbook");
+    bach.test(List.of("--details=none", "--fail-if-no-tests"));
+
+    Files.writeString(test, source.formatted(2));
+    var error = assertThrows(AssertionError.class, () -> bach.test(List.of("--details=none")));
+    assertEquals("Tests failed in module(s): t", error.getMessage());
+  }
+
+  @Test
+  void testRecompilesTestModuleAfterApiChangeOfMainModule(@TempDir Path temp) throws Exception {
+    copyJUnitLauncher(temp);
+    Files.createDirectories(temp.resolve("main/a/a"));
+    Files.writeString(temp.resolve("main/a/module-info.java"), "module a { exports a; }");
+    var a = temp.resolve("main/a/a/A.java");
+    var source = "package a; public class A { public static final int X = %d; }";
+    Files.writeString(a, source.formatted(1));
+    Files.createDirectories(temp.resolve("test/t/t"));
+    Files.writeString(
+        temp.resolve("test/t/module-info.java"),
+        "open module t { requires a; requires org.junit.jupiter.api; }");
+    Files.writeString(
+        temp.resolve("test/t/t/ATests.java"),
+        """
+        package t;
+        class ATests {
+          @org.junit.jupiter.api.Test
+          void one() {
+            org.junit.jupiter.api.Assertions.assertEquals(1, a.A.X);
+          }
+        }
+        """);
+    var bach = Bach.of(Bach.Printer.ofSilent(), "--chroot", temp.toString(), "--no-logbook");
+    bach.test(List.of("--details=none", "--fail-if-no-tests"));
+
+    Files.writeString(a, source.formatted(2)); // inlined into the class files of module t
+    var error = assertThrows(AssertionError.class, () -> bach.test(List.of("--details=none")));
+    assertEquals("Tests failed in module(s): t", error.getMessage());
+  }
+
+  private static void copyJUnitLauncher(Path root) throws IOException {
+    var junit = Files.createDirectories(root.resolve(".bach/external-tool-program/junit"));
+    try (var jars = Files.list(Path.of(".bach/external-tool-program/junit"))) {
+      for (var jar : jars.toList()) Files.copy(jar, junit.resolve(jar.getFileName()));
+    }
+  }
+
+  @Test
+  void testShardsCountTestsByTheirReportedStatus(@TempDir Path temp) throws Exception {
+    copyJUnitLauncher(temp);
+    var module = Files.createDirectories(temp.resolve("test/t"));
+    var info = "open module t { requires org.junit.jupiter.api; }";
+    Files.writeString(module.resolve("module-info.java"), info);
+    Files.createDirectories(module.resolve("t"));
+    Files.writeString(
+        module.resolve("t/ATests.java"),
+        """
+        package t;
+        import org.junit.jupiter.api.*;
+        class ATests {
+          @Test void ok() {}
+          @Test void aborted() { Assumptions.assumeTrue(false, "at the end"); }
+          @Test @Disabled("\tat reason") void disabled() {}
+          @Nested class Inner { @Test void failed() { Assertions.fail(); } }
+        }
+        """);
+    Files.writeString(
+        module.resolve("t/BTests.java"),
+        """
+        package t;
+        import org.junit.jupiter.api.*;
+        @Disabled class BTests { @Test void one() {} }
+        """);
+    var bach = Bach.of(Bach.Printer.ofSilent(), "--chroot", temp.toString(), "--no-logbook");
+    var error = assertThrows(AssertionError.class, () -> bach.test(2, List.of()));
+    assertTrue(error.getMessage().startsWith("Tests failed in shard(s): "), error.getMessage());
+    var lines = bach.printer().lines().stream().map(Bach.Printer.Line::text).toList();
+    var format = "%-25s %9s %9s %9s %9s %9s";
+    assertTrue(lines.contains(format.formatted("t.ATests", 4, 1, 1, 1, 1)), lines.toString());
+    assertTrue(lines.contains(format.formatted("t.BTests", 1, 0, 0, 0, 1)), lines.toString());
+    assertTrue(lines.contains(format.formatted("Shards (2)", 5, 1, 1, 1, 2)), lines.toString());
+  }
+
+  @Test
+  void testListenerIsRecompiledAfterLauncherJarChangedInPlace(@TempDir Path temp)
+      throws Exception {
+    copyJUnitLauncher(temp);
+    var junit = temp.resolve(".bach/external-tool-program/junit");
+    var launcher = Bach.PathSupport.list(junit, Bach.PathSupport::isJarFile).get(0);
+    var one = Bach.TestSupport.compileListener(temp.resolve("out"), launcher);
+    assertEquals(one, Bach.TestSupport.compileListener(temp.resolve("out"), launcher));
+
+    Files.writeString(temp.resolve("extra.txt"), "upgraded");
+    var jar = ToolProvider.findFirst("jar").orElseThrow();
+    var file = launcher.toString();
+    var args = new String[] {"--update", "--file", file, "-C", temp.toString(), "extra.txt"};
+    assertEquals(0, jar.run(System.out, System.err, args));
+    assertNotEquals(one, Bach.TestSupport.compileListener(temp.resolve("out"), launcher));
+  }
+
+  @Test
+  void checksumCacheDetectsChangedFile(@TempDir Path temp) throws Exception {
+    var cache = Bach.ChecksumCache.of(temp.resolve("checksums.txt"));
+    var file = Files.writeString(temp.resolve("file.txt"), "1");
+    var one = cache.computeChecksum(file, "SHA-256");
+    assertEquals(one, cache.computeChecksum(file, "SHA-256"));
+    Files.writeString(file, "22");
+    assertNotEquals(one, cache.computeChecksum(file, "SHA-256"));
+    assertEquals(2, Files.readAllLines(temp.resolve("checksums.txt")).size());
+  }
+
+  @Test
+  void launcherScriptCachesJarPerSourceChecksum(@TempDir Path temp) throws Exception {
+    var source = temp.resolve("Bach.java");
+    var main =
+        """
+        public class Bach {
+          public static void main(String... args) {
+            System.out.println("%s " + String.join(" ", args));
+          }
+        }
+        """;
+    Files.writeString(source, main.formatted("one"));
+    assertEquals("one a", launch(temp, "a"));
+    var caches = cacheDirectories(temp);
+    assertEquals(1, caches.size(), caches.toString());
+    assertTrue(Files.isRegularFile(caches.get(0).resolve("bach.jar")));
+    assertTrue(Files.isRegularFile(caches.get(0).resolve("bach.jsa")));
+    assertEquals("one b", launch(temp, "b"));
+    assertEquals(caches, cacheDirectories(temp));
+
+    Files.writeString(source, main.formatted("two"));
+    assertEquals("two c", launch(temp, "c"));
+    assertEquals(2, cacheDirectories(temp).size());
+  }
+
+  private static String launch(Path temp, String argument) throws Exception {
+    var script = Path.of(".bach/bin/bach").toAbsolutePath().toString();
+    var builder = new ProcessBuilder("sh", script, argument).directory(temp.toFile());
+    builder.environment().put("BACH_SOURCE", temp.resolve("Bach.java").toString());
+    builder.environment().put("BACH_CACHE", temp.resolve("cache").toString());
+    builder.environment().put("JAVA_HOME", System.getProperty("java.home"));
+    var process = builder.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    var output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    assertEquals(0, process.waitFor());
+    return output.strip();
+  }
+
+  private static List<Path> cacheDirectories(Path temp) throws IOException {
+    try (var directories = Files.list(temp.resolve("cache"))) {
+      return directories.sorted().toList();
+    }
+  }
+
+  @Test
+  void logbookStreamWritesTextLinesAndRecording(@TempDir Path temp) throws Exception {
+    var args = new String[] {"--logbook-stream", "--logbook-max-size", "1", "--chroot", "."};
+    var bach = Bach.of(Bach.Printer.ofSilent(), args);
+    var errors = new ConcurrentLinkedQueue<String>();
+    var logbook = Bach.Logbook.start(bach.options(), temp, errors::add);
+    try {
+      bach.log(System.Logger.Level.INFO, "streamed %d", 123);
+    } finally {
+      logbook.close();
+    }
+    assertEquals(List.of(), List.copyOf(errors));
+    var lines = Files.readAllLines(temp.resolve("bach-logbook.txt"));
+    assertTrue(lines.stream().anyMatch(line -> line.endsWith(" INFO streamed 123")), "" + lines);
+    var messages =
+        RecordingFile.readAllEvents(temp.resolve("bach-logbook.jfr")).stream()
+            .filter(event -> event.getEventType().getName().equals("Bach.LogEvent"))
+            .map(event -> event.getString("message"))
+            .toList();
+    assertTrue(messages.contains("streamed 123"), messages.toString());
+  }
+
+  @Test
+  void logSuppliesMessageOnlyIfPrintedOrRecorded(@TempDir Path temp) throws Exception {
+    var supplied = new AtomicInteger();
+    Supplier<String> supplier = () -> "message " + supplied.incrementAndGet();
+    var threshold = new String[] {"--logbook-threshold", "WARNING", "--chroot", "."};
+    var silent = Bach.of(Bach.Printer.ofSilent(), "--no-logbook", "--logbook-threshold", "WARNING");
+    silent.log(System.Logger.Level.DEBUG, supplier);
+    assertEquals(0, supplied.get());
+    silent.log(System.Logger.Level.WARNING, supplier);
+    assertEquals(1, supplied.get());
+    var texts = silent.printer().lines().stream().map(Bach.Printer.Line::text).toList();
+    assertEquals(List.of("message 1"), texts);
+
+    var recorded = Bach.of(Bach.Printer.ofSilent(), threshold);
+    var logbook = Bach.Logbook.start(recorded.options(), temp, __ -> {});
+    try {
+      recorded.log(System.Logger.Level.DEBUG, supplier);
+    } finally {
+      logbook.close();
+    }
+    assertEquals(2, supplied.get());
+    assertTrue(recorded.printer().lines().isEmpty());
+  }
+
+  @Test
+  void checksumFilesHashesMappedAndBufferedFilesInOrder(@TempDir Path temp) throws Exception {
+    var large = new byte[(1 << 24) + 17]; // spans two mapped regions
+    for (int i = 0; i < large.length; i++) large[i] = (byte) (i * 31);
+    var files = Files.createDirectories(temp.resolve("files"));
+    var a = Files.write(files.resolve("a.bin"), large);
+    var b = Files.writeString(files.resolve("b.txt"), "b");
+    var bach = Bach.of(Bach.Printer.ofSilent(), "--chroot", temp.toString(), "--no-logbook");
+    bach.run("checksum", "--files", "--algorithm=SHA-256", files.toString());
+    var lines = bach.printer().lines().stream().map(Bach.Printer.Line::text).toList();
+    var sha = MessageDigest.getInstance("SHA-256");
+    var expected =
+        List.of(
+            HexFormat.of().formatHex(sha.digest(large)) + " " + a,
+            HexFormat.of().formatHex(sha.digest("b".getBytes(StandardCharsets.UTF_8))) + " " + b);
+    assertEquals(expected, lines.stream().filter(expected::contains).toList(), lines.toString());
+    assertThrows(AssertionError.class, () -> bach.run("checksum", "--files", "--algorithm=MD5"));
+  }
+
+  @Test
+  void toolCallCacheRestoresOutputsOfUnchangedInputs(@TempDir Path temp) throws Exception {
+    var checksums = Bach.ChecksumCache.of(temp.resolve("checksums.txt"));
+    var cache = new Bach.ToolCallCache(temp.resolve("cache"), checksums);
+    var source = Files.writeString(temp.resolve("A.java"), "class A {}");
+    var classes = temp.resolve("classes");
+    var call = Bach.ToolCall.of("javac", "-d", classes.toString(), source.toString());
+    var key = cache.key(call).orElseThrow();
+    assertFalse(cache.restore(key));
+
+    var begin = Instant.now();
+    var javac = ToolProvider.findFirst("javac").orElseThrow();
+    assertEquals(0, javac.run(System.out, System.err, call.arguments().toArray(String[]::new)));
+    cache.store(key, call, begin);
+    var bytes = Files.readAllBytes(classes.resolve("A.class"));
+    Bach.PathSupport.delete(classes);
+    assertEquals(key, cache.key(call).orElseThrow());
+    assertTrue(cache.restore(key));
+    assertArrayEquals(bytes, Files.readAllBytes(classes.resolve("A.class")));
+
+    Files.writeString(source, "class A { int a; }");
+    assertNotEquals(key, cache.key(call).orElseThrow());
+
+    try (var objects = Files.list(temp.resolve("cache/objects"))) {
+      for (var object : objects.toList()) Files.writeString(object, "corrupt");
+    }
+    assertFalse(cache.restore(key));
+
+    var nothing = Bach.ToolCall.of("jar", "--file", temp.resolve("nothing.jar").toString());
+    var none = cache.key(nothing).orElseThrow();
+    cache.store(none, nothing, Instant.now());
+    assertFalse(cache.restore(none));
+  }
+
+  @Test
+  void changesAffectOnlyCallsReferencingChangedFiles(@TempDir Path temp) throws Exception {
+    var a = Files.createDirectories(temp.resolve("a"));
+    var b = Files.createDirectories(temp.resolve("b"));
+    var changes = new Bach.Changes(Set.of(a.resolve("A.java")));
+    assertTrue(changes.affects(Bach.ToolCall.of("javac", "-d", a.toString())));
+    var classPath = "--class-path=" + b + File.pathSeparator + a;
+    assertTrue(changes.affects(Bach.ToolCall.of("java", classPath)));
+    assertTrue(changes.affects(Bach.ToolCall.of("javac", "--version")));
+    var jar = Bach.ToolCall.of("jar", "--create", "-C", b.toString(), ".");
+    assertFalse(changes.affects(jar));
+    changes.ran(Bach.ToolCall.of("javac", "-d", b.toString(), a.toString()));
+    assertTrue(changes.affects(jar));
+  }
+
+  @Test
+  void watchRerunsStepsAffectedByChangedFiles(@TempDir Path temp) throws Exception {
+    var started = new LinkedBlockingQueue<String>();
+    var step =
+        Bach.Tool.of(
+            "step",
+            (bach, out, err, args) -> {
+              started.add(Path.of(args[0]).getFileName().toString());
+              return 0;
+            });
+    var a = Files.createDirectories(temp.resolve("src/a"));
+    var b = Files.createDirectories(temp.resolve("src/b"));
+    Files.writeString(b.resolve("B.java"), "class B {}");
+    var basics = Files.createDirectories(temp.resolve(".bach/basic-tools"));
+    var steps = "1=step\\n %s\n2=step\\n %s\n".formatted(a, b);
+    Files.writeString(basics.resolve("build.properties"), steps);
+    var base = Bach.of(Bach.Printer.ofSilent(), "--chroot", temp.toString(), "--no-logbook");
+    var finder =
+        Bach.ToolFinder.compose(Bach.ToolFinder.ofBasicTools(basics), Bach.ToolFinder.of(step));
+    var tools = new Bach.Tools(finder);
+    var bach = new Bach(base.printer(), base.options(), base.paths(), base.externals(), tools);
+
+    var watcher = new Thread(() -> bach.watch(Bach.ToolCall.of("build")));
+    watcher.start();
+    try {
+      assertEquals("a", started.poll(9, TimeUnit.SECONDS));
+      assertEquals("b", started.poll(9, TimeUnit.SECONDS));
+      Thread.sleep(500); // let the watch service settle before changing a file
+      Files.writeString(a.resolve("A.java"), "class A {}");
+      assertEquals("a", started.poll(9, TimeUnit.SECONDS));
+      assertNull(started.poll(1, TimeUnit.SECONDS));
+      Files.writeString(basics.resolve("build.properties"), steps + "3=step\\n " + temp);
+      assertEquals("a", started.poll(9, TimeUnit.SECONDS));
+      assertEquals("b", started.poll(9, TimeUnit.SECONDS));
+      assertEquals(temp.getFileName().toString(), started.poll(9, TimeUnit.SECONDS));
+    } finally {
+      watcher.interrupt();
+      watcher.join(9_000);
+    }
+    assertFalse(watcher.isAlive());
+  }
+
+  @Test
+  void basicToolStepsRunAsDependencyGraph(@TempDir Path temp) throws Exception {
+    var started = new ConcurrentLinkedQueue<String>();
+    var barrier = new CyclicBarrier(2);
+    var step =
+        Bach.Tool.of(
+            "step",
+            (bach, out, err, args) -> {
+              started.add(args[0]);
+              if (args.length == 1) return 0;
+              try {
+                barrier.await(9, TimeUnit.SECONDS);
+                return 0;
+              } catch (Exception exception) {
+                return 1;
+              }
+            });
+    var basics = Files.createDirectories(temp.resolve(".bach/basic-tools"));
+    var base = Bach.of(Bach.Printer.ofSilent(), "--chroot", temp.toString());
+    var finder =
+        Bach.ToolFinder.compose(Bach.ToolFinder.ofBasicTools(basics), Bach.ToolFinder.of(step));
+    var tools = new Bach.Tools(finder);
+    var bach = new Bach(base.printer(), base.options(), base.paths(), base.externals(), tools);
+
+    // steps 1 and 2 wait for each other, unless the pool is limited to a single processor
+    var parallel = Runtime.getRuntime().availableProcessors() > 1 ? "\\n parallel" : "";
+    Files.writeString(
+        basics.resolve("graph.properties"),
+        """
+        1=step\\n a%1$s
+        2=step\\n b%1$s
+        2.after=
+        3=step\\n c
+        3.after=1,2
+        """
+            .formatted(parallel));
+    bach.run("graph");
+    assertEquals(Set.of("a", "b"), Set.copyOf(List.copyOf(started).subList(0, 2)));
+    assertEquals("c", List.copyOf(started).get(2));
+
+    Files.writeString(
+        basics.resolve("cycle.properties"),
+        """
+        1=step\\n a
+        1.after=2
+        2=step\\n b
+        2.after=1
+        """);
+    var cycle = assertThrows(IllegalArgumentException.class, () -> bach.run("cycle"));
+    assertEquals("Step 1 must run after an earlier step, but got: 2", cycle.getMessage());
+    Files.writeString(basics.resolve("missing.properties"), "1=step\\n a\n1.after=0\n");
+    var missing = assertThrows(IllegalArgumentException.class, () -> bach.run("missing"));
+    assertEquals("Step 1 must run after an earlier step, but got: 0", missing.getMessage());
+  }
+
+  @Test
+  void profileComputesSelfTimeAndCriticalPath() {
+    var a = new Bach.ProfileSupport.Run(2, 1, "a", "", "main", 1, 10, 40, new ArrayList<>());
+    var b = new Bach.ProfileSupport.Run(3, 1, "b", "", "pool", 2, 20, 60, new ArrayList<>());
+    var c = new Bach.ProfileSupport.Run(4, 1, "c", "", "main", 1, 60, 90, new ArrayList<>());
+    var root = new Bach.ProfileSupport.Run(1, 0, "root", "", "main", 1, 0, 100, new ArrayList<>());
+    var roots = Bach.ProfileSupport.tree(List.of(root, a, b, c));
+    assertEquals(List.of(root), roots);
+    assertEquals(List.of(a, b, c), root.children());
+    assertEquals(20, root.self());
+    var path = Bach.ProfileSupport.criticalPath(roots, 0).stream().map(step -> step.run());
+    assertEquals(List.of(root, b, c), path.toList());
+    assertEquals(2, Bach.ProfileSupport.maximumParallelism(List.of(a, b, c)));
+  }
+
+  @Test
+  void balanceShardsByLongestDurationFirst() {
+    var durations = new Properties();
+    durations.setProperty("A", "500");
+    durations.setProperty("B", "300");
+    durations.setProperty("C", "200");
+    durations.setProperty("D", "100");
+    var shards = Bach.TestSupport.balance(List.of("A", "B", "C", "D", "E"), durations, 2);
+    assertEquals(List.of(List.of("A", "C"), List.of("B", "E", "D")), shards);
+  }
+
+  @Test
+  void groupedOutputOfThrowingToolIsPrinted(@TempDir Path temp) {
+    var outs = new ConcurrentLinkedQueue<String>();
+    var errs = new ConcurrentLinkedQueue<String>();
+    var lines = new Bach.Printer.Lines(0, System.Logger.Level.ALL);
+    var printer = new Bach.Printer(outs::add, errs::add, lines);
+    var base =
+        Bach.of(printer, "--printer-mode", "GROUPED", "--chroot", temp.toString(), "--no-logbook");
+    var boom =
+        Bach.Tool.of(
+            "boom",
+            (bach, out, err, arguments) -> {
+              out.println("1");
+              out.print("2");
+              err.print("partial");
+              throw new IllegalStateException("boom");
+            });
+    var tools = new Bach.Tools(Bach.ToolFinder.of(boom));
+    var bach = new Bach(base.printer(), base.options(), base.paths(), base.externals(), tools);
+    var exception = assertThrows(IllegalStateException.class, () -> bach.run("boom"));
+    assertEquals("boom", exception.getMessage());
+    assertEquals(List.of("boom", "  1\n  2"), List.copyOf(outs)); // command line and output
+    assertEquals(List.of("  partial"), List.copyOf(errs));
+  }
+
+  @Test
+  void lineForwardingWriterRetainsTail() {
+    var lines = new ArrayList<String>();
+    var writer = new Bach.LineForwardingWriter(lines::add, 8);
+    var printer = new PrintWriter(writer, true);
+    printer.println("one");
+    printer.print("two\r\nthree");
+    printer.flush();
+    assertEquals(List.of("one", "two"), lines);
+    writer.close();
+    assertEquals(List.of("one", "two", "three"), lines);
+    assertEquals("[...]\nthree", writer.toString());
+  }
+
   @RepeatedTest(3)
   void sleeping() throws Exception {
     Thread.sleep(1000);
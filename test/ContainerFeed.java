@@ -1,70 +1,86 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Map;
-import java.util.StringJoiner;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.UniqueId;
 import org.junit.platform.launcher.TestExecutionListener;
 import org.junit.platform.launcher.TestIdentifier;
 import org.junit.platform.launcher.TestPlan;
 
+/**
+ * Prints a summary line for each finished container.
+ *
+ * <p>Set the configuration parameter {@code containerfeed.report} to a file name ending with
+ * {@code .json} or {@code .csv} to also write all summaries to that file.
+ */
 public class ContainerFeed implements TestExecutionListener {
 
-  private record Summary(int size, int successful, int aborted, int failed, int skipped) {
-    Summary with(Summary other) {
-      return new Summary(
-          size + other.size,
-          successful + other.successful,
-          aborted + other.aborted,
-          failed + other.failed,
-          skipped + other.skipped);
-    }
+  public static final String REPORT = "containerfeed.report";
+
+  private static final class Summary {
+    final AtomicInteger size = new AtomicInteger();
+    final AtomicInteger successful = new AtomicInteger();
+    final AtomicInteger aborted = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger skipped = new AtomicInteger();
   }
 
-  private final Map<String, Summary> results = new ConcurrentHashMap<>();
+  private record Row(TestIdentifier identifier, Summary summary) {}
+
+  private final Map<UniqueId, Summary> results = new ConcurrentHashMap<>();
+  private final Queue<Row> rows = new ConcurrentLinkedQueue<>();
+  private volatile TestPlan testPlan;
 
   @Override
   public void testPlanExecutionStarted(TestPlan testPlan) {
+    this.testPlan = testPlan;
     printCaptions();
   }
 
   @Override
   public void testPlanExecutionFinished(TestPlan testPlan) {
     printCaptions();
+    testPlan.getConfigurationParameters().get(REPORT).map(Path::of).ifPresent(this::writeReport);
   }
 
   @Override
   public void executionFinished(TestIdentifier identifier, TestExecutionResult result) {
     if (identifier.isTest()) {
-      var status = result.getStatus();
-      var summary =
-          new Summary(
-              1,
-              status == TestExecutionResult.Status.SUCCESSFUL ? 1 : 0,
-              status == TestExecutionResult.Status.ABORTED ? 1 : 0,
-              status == TestExecutionResult.Status.FAILED ? 1 : 0,
-              0);
-      merge(identifier, summary);
+      Function<Summary, AtomicInteger> counter =
+          switch (result.getStatus()) {
+            case SUCCESSFUL -> summary -> summary.successful;
+            case ABORTED -> summary -> summary.aborted;
+            case FAILED -> summary -> summary.failed;
+          };
+      count(identifier, counter);
     }
     if (identifier.isContainer()) {
-      var summary = results.get(identifier.getUniqueId());
+      var summary = results.get(identifier.getUniqueIdObject());
       if (summary == null) return;
+      rows.add(new Row(identifier, summary));
       print(identifier, summary);
     }
   }
 
   @Override
   public void executionSkipped(TestIdentifier identifier, String reason) {
-    if (identifier.isTest()) {
-      var summary = new Summary(1, 0, 0, 0, 1);
-      merge(identifier, summary);
-    }
+    if (identifier.isTest()) count(identifier, summary -> summary.skipped);
   }
 
-  private void merge(TestIdentifier identifier, Summary summary) {
-    var joiner = new StringJoiner("/");
-    var segments = identifier.getUniqueIdObject().getSegments();
-    for (var segment : segments) {
-      joiner.add('[' + segment.getType() + ':' + segment.getValue() + ']');
-      results.merge(joiner.toString(), summary, Summary::with);
+  private void count(TestIdentifier test, Function<Summary, AtomicInteger> counter) {
+    var parent = testPlan.getParent(test);
+    for (var identifier = parent.orElse(null); identifier != null; ) {
+      var summary = results.computeIfAbsent(identifier.getUniqueIdObject(), __ -> new Summary());
+      summary.size.incrementAndGet();
+      counter.apply(summary).incrementAndGet();
+      identifier = testPlan.getParent(identifier).orElse(null);
     }
   }
 
@@ -83,4 +99,52 @@ public class ContainerFeed implements TestExecutionListener {
         summary.failed,
         summary.skipped);
   }
+
+  private void writeReport(Path file) {
+    var json = file.toString().endsWith(".json");
+    var report = new StringBuilder(json ? "[\n" : "id,name,found,ok,aborted,failed,skipped\n");
+    var format = json ? JSON : CSV;
+    var first = true;
+    for (var row : rows) {
+      if (json && !first) report.append(",\n");
+      first = false;
+      var summary = row.summary();
+      report.append(
+          format.formatted(
+              quote(row.identifier().getUniqueId(), json),
+              quote(row.identifier().getDisplayName(), json),
+              summary.size.get(),
+              summary.successful.get(),
+              summary.aborted.get(),
+              summary.failed.get(),
+              summary.skipped.get()));
+      if (!json) report.append('\n');
+    }
+    if (json) report.append("\n]\n");
+    try {
+      var parent = file.toAbsolutePath().getParent();
+      if (parent != null) Files.createDirectories(parent);
+      Files.writeString(file, report);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  private static final String JSON =
+      """
+        {"id": %s, "name": %s, "found": %d, "ok": %d, "aborted": %d, "failed": %d, "skipped": %d}\
+      """;
+
+  private static final String CSV = "%s,%s,%d,%d,%d,%d,%d";
+
+  private static String quote(String string, boolean json) {
+    var builder = new StringBuilder(string.length() + 2).append('"');
+    for (var c : string.toCharArray()) {
+      if (c == '"') builder.append(json ? "\\\"" : "\"\"");
+      else if (json && c == '\\') builder.append("\\\\");
+      else if (json && c < 0x20) builder.append("\\u%04x".formatted((int) c));
+      else builder.append(c);
+    }
+    return builder.append('"').toString();
+  }
 }